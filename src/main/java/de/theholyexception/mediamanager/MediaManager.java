@@ -12,6 +12,7 @@ import de.theholyexception.mediamanager.api.WebServer;
 import de.theholyexception.mediamanager.handler.*;
 import de.theholyexception.mediamanager.logging.DownloadLogger;
 import de.theholyexception.mediamanager.models.aniworld.Anime;
+import de.theholyexception.mediamanager.models.aniworld.AniworldHelper;
 import de.theholyexception.mediamanager.models.aniworld.Season;
 import de.theholyexception.mediamanager.settings.Settings;
 import de.theholyexception.mediamanager.util.InitializationException;
@@ -28,6 +29,7 @@ import java.nio.file.Paths;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
 public class MediaManager {
@@ -73,6 +75,8 @@ public class MediaManager {
     @Getter
     private String holyapiVersion = UNKNOWN_VERSION_STRING;
 
+    private final AtomicBoolean shuttingDown = new AtomicBoolean(false);
+
 	public MediaManager() {
         dependencyInjector = new ComplexDIContainer().setResolveCircularDependencies(true);
         dependencyInjector.register(MediaManager.class, this);
@@ -113,6 +117,65 @@ public class MediaManager {
         }
 
         handlers.values().forEach(Handler::initialize);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "Shutdown"));
+    }
+
+    /**
+     * Stops the application within {@link MediaManagerConfig.General#shutdownTimeoutSeconds}.
+     * The web server stops accepting requests first, then every handler persists its state
+     * and finally the pending database writes are flushed.
+     */
+    public void shutdown() {
+        if (!shuttingDown.compareAndSet(false, true))
+            return;
+        long deadline = System.currentTimeMillis() + MediaManagerConfig.General.shutdownTimeoutSeconds * 1000L;
+        log.info("Shutting down MediaManager");
+
+        try {
+            dependencyInjector.resolve(WebServer.class).shutdown();
+        } catch (Exception ex) {
+            log.error("Failed to stop the web server", ex);
+        }
+
+        for (Handler handler : handlers.values()) {
+            try {
+                handler.shutdown(deadline);
+            } catch (Exception ex) {
+                log.error("Failed to shut down {}", handler.getClass().getSimpleName(), ex);
+            }
+        }
+
+        try {
+            AniworldHelper.saveCaches();
+        } catch (Exception ex) {
+            log.error("Failed to write the scrape cache", ex);
+        }
+
+        try {
+            flushDatabase(deadline);
+        } catch (Exception ex) {
+            log.error("Failed to flush the database writes", ex);
+        }
+        log.info("MediaManager stopped");
+    }
+
+    /**
+     * Waits until the asynchronous database writes are done, at most until the deadline.
+     */
+    private void flushDatabase(long deadline) {
+        MySQLInterface db = dependencyInjector.resolve(MySQLInterface.class);
+        if (db == null)
+            return;
+        Thread flush = new Thread(() -> db.getExecutorHandler().awaitGroup(-1), "DB-Flush");
+        flush.setDaemon(true);
+        flush.start();
+        try {
+            flush.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (flush.isAlive())
+            log.warn("Database writes have not been flushed before the shutdown deadline");
     }
 
     /**
@@ -183,6 +246,7 @@ public class MediaManager {
         }
 
         ProxyHandler.initialize();
+        AniworldHelper.initializeCaches();
         DownloadLogger.initialize();
         WebSocketUtils.initialize();
     }
@@ -1,6 +1,7 @@
 package de.theholyexception.mediamanager;
 
 import ch.qos.logback.classic.Level;
+import de.theholyexception.mediamanager.download.CpuBudget;
 import de.theholyexception.mediamanager.models.Target;
 import de.theholyexception.mediamanager.util.InitializationException;
 import lombok.extern.slf4j.Slf4j;
@@ -26,12 +27,14 @@ public class MediaManagerConfig {
 		public static String ffmpeg;
 		public static boolean enablePacketBuffer;
 		public static int packetBufferSleep;
+		public static int shutdownTimeoutSeconds;
 		
 		static void load(TomlParseResult config) {
 			logLevel = Level.valueOf(config.getString("general.logLevel", () -> "INFO"));
 			ffmpeg = config.getString("general.ffmpeg", () -> "ffmpeg");
 			enablePacketBuffer = config.getBoolean("general.enablePacketBuffer", () -> true);
 			packetBufferSleep = Math.toIntExact(config.getLong("general.packetBufferSleep", () -> 100));
+			shutdownTimeoutSeconds = Math.toIntExact(config.getLong("general.shutdownTimeoutSeconds", () -> 8));
 		}
 	}
 	
@@ -60,11 +63,112 @@ public class MediaManagerConfig {
 		public static String tmpDownloadFolder;
 		public static boolean useDirectMemory;
 		public static boolean untrustedCertificates;
+		public static boolean virtualThreads;
+		public static int titleResolverThreads;
+		public static boolean persistQueue;
+		public static int finalizerThreads;
+		public static int moveRetries;
+		public static int moveRetryDelaySeconds;
+		public static int postProcessThreads;
+		public static int minFreeSpaceMB;
+		public static int defaultDownloadSizeMB;
+		public static int stallTimeoutSeconds;
+		public static int stallCancelSeconds;
+		public static boolean resumable;
+		public static int reclaimIntervalMinutes;
+		public static int reclaimGraceMinutes;
+		public static long reclaimBytesPerSecond;
 
 		static void load(TomlParseResult config) {
 			tmpDownloadFolder = config.getString("downloader.tmpDownloadFolder", () -> "./tmp");
 			useDirectMemory = config.getBoolean("downloader.useDirectMemory", () -> false);
 			untrustedCertificates = config.getBoolean("downloader.untrustedCertificates", () -> false);
+			virtualThreads = config.getBoolean("downloader.virtualThreads", () -> true);
+			titleResolverThreads = Math.toIntExact(config.getLong("downloader.titleResolverThreads", () -> 5));
+			persistQueue = config.getBoolean("downloader.persistQueue", () -> true);
+			finalizerThreads = Math.toIntExact(config.getLong("downloader.finalizerThreads", () -> 2));
+			moveRetries = Math.toIntExact(config.getLong("downloader.moveRetries", () -> 3));
+			moveRetryDelaySeconds = Math.toIntExact(config.getLong("downloader.moveRetryDelaySeconds", () -> 30));
+			postProcessThreads = Math.toIntExact(config.getLong("downloader.postProcessThreads", CpuBudget::getAvailableCpus));
+			minFreeSpaceMB = Math.toIntExact(config.getLong("downloader.minFreeSpaceMB", () -> 1024));
+			defaultDownloadSizeMB = Math.toIntExact(config.getLong("downloader.defaultDownloadSizeMB", () -> 500));
+			stallTimeoutSeconds = Math.toIntExact(config.getLong("downloader.stallTimeoutSeconds", () -> 180));
+			stallCancelSeconds = Math.toIntExact(config.getLong("downloader.stallCancelSeconds", () -> 600));
+			resumable = config.getBoolean("downloader.resumable", () -> true);
+			reclaimIntervalMinutes = Math.toIntExact(config.getLong("downloader.reclaimIntervalMinutes", () -> 60));
+			reclaimGraceMinutes = Math.toIntExact(config.getLong("downloader.reclaimGraceMinutes", () -> 60));
+			reclaimBytesPerSecond = config.getLong("downloader.reclaimBytesPerSecond", () -> 50L * 1024L * 1024L);
+		}
+	}
+
+	public static class Scheduler {
+		public static int agingMinutes;
+		public static int targetFairnessMinutes;
+
+		static void load(TomlParseResult config) {
+			agingMinutes = Math.toIntExact(config.getLong("scheduler.agingMinutes", () -> 30));
+			targetFairnessMinutes = Math.toIntExact(config.getLong("scheduler.targetFairnessMinutes", () -> 10));
+		}
+	}
+
+	public static class AdaptiveThreads {
+		public static boolean enabled;
+		public static int minThreads;
+		public static int maxThreads;
+
+		static void load(TomlParseResult config) {
+			enabled = config.getBoolean("adaptiveThreads.enabled", () -> false);
+			minThreads = Math.toIntExact(config.getLong("adaptiveThreads.minThreads", () -> 1));
+			maxThreads = Math.toIntExact(config.getLong("adaptiveThreads.maxThreads", () -> 8));
+		}
+	}
+
+	public static class Failover {
+		public static boolean enabled;
+		public static int afterErrors;
+		public static List<String> errorPatterns = new ArrayList<>();
+
+		static void load(TomlParseResult config) {
+			enabled = config.getBoolean("failover.enabled", () -> true);
+			afterErrors = Math.toIntExact(config.getLong("failover.afterErrors", () -> 2));
+
+			errorPatterns.clear();
+			var patternArray = config.getArray("failover.errorPatterns");
+			if (patternArray == null) {
+				errorPatterns.addAll(List.of("response code: 404", "response code: 410", "filenotfoundexception", "download stalled"));
+				return;
+			}
+			for (int i = 0; i < patternArray.size(); i++)
+				errorPatterns.add(patternArray.getString(i).toLowerCase());
+		}
+	}
+
+	public static class Hosters {
+		public static int defaultMaxConcurrent;
+		public static long defaultMaxBytesPerSecond;
+		public static int burstSeconds;
+		public static List<HosterEntry> list = new ArrayList<>();
+
+		static void load(TomlParseResult config) {
+			defaultMaxConcurrent = Math.toIntExact(config.getLong("hosters.defaultMaxConcurrent", () -> 0));
+			defaultMaxBytesPerSecond = config.getLong("hosters.defaultMaxBytesPerSecond", () -> 0);
+			burstSeconds = Math.toIntExact(config.getLong("hosters.burstSeconds", () -> 60));
+
+			list.clear();
+			var hosterArray = config.getArray("hoster");
+			if (hosterArray == null) return;
+
+			for (int i = 0; i < hosterArray.size(); i++) {
+				var hosterTable = hosterArray.getTable(i);
+				if (hosterTable != null) {
+					String name = hosterTable.getString("name");
+					if (name == null) throw new IllegalStateException("Missing required 'name' in hoster[" + i + "]");
+
+					int maxConcurrent = Math.toIntExact(hosterTable.getLong("maxConcurrent", () -> defaultMaxConcurrent));
+					long maxBytesPerSecond = hosterTable.getLong("maxBytesPerSecond", () -> defaultMaxBytesPerSecond);
+					list.add(new HosterEntry(name, maxConcurrent, maxBytesPerSecond));
+				}
+			}
 		}
 	}
 
@@ -91,6 +195,40 @@ public class MediaManagerConfig {
 		}
 	}
 
+	public static class Http {
+		public static int connectTimeoutSeconds;
+		public static int requestTimeoutSeconds;
+		public static int redirectParallelism;
+		public static int retries;
+
+		static void load(TomlParseResult config) {
+			connectTimeoutSeconds = Math.toIntExact(config.getLong("http.connectTimeoutSeconds", () -> 20));
+			requestTimeoutSeconds = Math.toIntExact(config.getLong("http.requestTimeoutSeconds", () -> 30));
+			redirectParallelism = Math.toIntExact(config.getLong("http.redirectParallelism", () -> 6));
+			retries = Math.toIntExact(config.getLong("http.retries", () -> 2));
+		}
+	}
+
+	public static class Cache {
+		public static boolean enabled;
+		public static String directory;
+		public static int maxEntries;
+		public static int languageTtlHours;
+		public static int videoUrlTtlHours;
+		public static int alternateVideoUrlTtlMinutes;
+		public static int flushIntervalMinutes;
+
+		static void load(TomlParseResult config) {
+			enabled = config.getBoolean("cache.enabled", () -> true);
+			directory = config.getString("cache.directory", () -> "./config/cache");
+			maxEntries = Math.toIntExact(config.getLong("cache.maxEntries", () -> 50000));
+			languageTtlHours = Math.toIntExact(config.getLong("cache.languageTtlHours", () -> 168));
+			videoUrlTtlHours = Math.toIntExact(config.getLong("cache.videoUrlTtlHours", () -> 12));
+			alternateVideoUrlTtlMinutes = Math.toIntExact(config.getLong("cache.alternateVideoUrlTtlMinutes", () -> 30));
+			flushIntervalMinutes = Math.toIntExact(config.getLong("cache.flushIntervalMinutes", () -> 5));
+		}
+	}
+
 	public static class Proxies {
 		public static List<ProxyEntry> list = new ArrayList<>();
 
@@ -209,8 +347,14 @@ public class MediaManagerConfig {
 		General.load(config);
 		Logging.load(config);
 		Downloader.load(config);
+		Scheduler.load(config);
+		Hosters.load(config);
+		AdaptiveThreads.load(config);
+		Failover.load(config);
 		Validator.load(config);
 		Proxy.load(config);
+		Http.load(config);
+		Cache.load(config);
 		WebServer.load(config);
 		MySQL.load(config);
 		Autoloader.load(config);
@@ -232,5 +376,16 @@ public class MediaManagerConfig {
 		}
 	}
 
+	public static class HosterEntry {
+		public final String name;
+		public final int maxConcurrent;
+		public final long maxBytesPerSecond;
+
+		public HosterEntry(String name, int maxConcurrent, long maxBytesPerSecond) {
+			this.name = name;
+			this.maxConcurrent = maxConcurrent;
+			this.maxBytesPerSecond = maxBytesPerSecond;
+		}
+	}
 
 }
@@ -149,6 +149,8 @@ public class WebServer implements DIInitializer {
 	}
 	
 	public void shutdown() {
+		if (app != null)
+			app.stop();
 		if (keepAliveExecutor != null && !keepAliveExecutor.isShutdown()) {
 			keepAliveExecutor.shutdown();
 			try {
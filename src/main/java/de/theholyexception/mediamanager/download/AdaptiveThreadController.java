@@ -0,0 +1,136 @@
+package de.theholyexception.mediamanager.download;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adjusts the number of segment threads per hoster based on the measured throughput (AIMD).
+ * <p>
+ * After every successful download the throughput is compared with the average of the hoster:
+ * if it did not get worse the thread count is raised by one, otherwise it is lowered by one.
+ * A failed download is treated as a sign of rate limiting and halves the thread count.
+ * The thread count always stays between the configured bounds.
+ */
+@Slf4j
+public class AdaptiveThreadController {
+
+	/** Throughput may drop by this fraction before an additional thread counts as not helpful */
+	private static final double TOLERANCE = 0.1;
+	/** Weight of a new sample in the average throughput */
+	private static final double SMOOTHING = 0.3;
+
+	@Getter
+	private final boolean enabled;
+	private final int minThreads;
+	private final int maxThreads;
+	private final Map<String, HosterState> states = new ConcurrentHashMap<>();
+
+	public AdaptiveThreadController(boolean enabled, int minThreads, int maxThreads) {
+		this.enabled = enabled;
+		this.minThreads = Math.max(1, minThreads);
+		this.maxThreads = Math.max(this.minThreads, maxThreads);
+	}
+
+	/**
+	 * @param hoster Hoster key
+	 * @param configuredThreads The globally configured thread count, used as start value
+	 * @return Number of threads to use for the next download of the hoster
+	 */
+	public int getThreads(String hoster, int configuredThreads) {
+		if (!enabled)
+			return configuredThreads;
+		return getState(hoster, configuredThreads).getThreads();
+	}
+
+	/**
+	 * Reports a successful download.
+	 *
+	 * @param hoster Hoster key
+	 * @param threads Number of threads the download used
+	 * @param bytes Size of the downloaded file
+	 * @param millis Time between the first progress update and the end of the download
+	 */
+	public void onCompleted(String hoster, int threads, long bytes, long millis) {
+		if (!enabled || bytes <= 0 || millis <= 0)
+			return;
+		getState(hoster, threads).onCompleted(threads, bytes * 1000d / millis);
+	}
+
+	/**
+	 * Reports a failed download.
+	 *
+	 * @param hoster Hoster key
+	 * @param threads Number of threads the download used
+	 */
+	public void onFailed(String hoster, int threads) {
+		if (!enabled)
+			return;
+		getState(hoster, threads).onFailed(threads);
+	}
+
+	/**
+	 * @return Current thread count of the hoster, or -1 if the hoster has not been used yet
+	 */
+	public int getCurrentThreads(String hoster) {
+		HosterState state = states.get(hoster);
+		return state == null ? -1 : state.getThreads();
+	}
+
+	/**
+	 * @return Average throughput of the hoster in bytes per second, 0 if unknown
+	 */
+	public long getAverageThroughput(String hoster) {
+		HosterState state = states.get(hoster);
+		return state == null ? 0 : (long) state.getAverageThroughput();
+	}
+
+	private HosterState getState(String hoster, int initialThreads) {
+		return states.computeIfAbsent(hoster, h -> new HosterState(h, clamp(initialThreads)));
+	}
+
+	private int clamp(int threads) {
+		return Math.max(minThreads, Math.min(maxThreads, threads));
+	}
+
+	private class HosterState {
+		private final String hoster;
+		private int threads;
+		private double averageThroughput;
+
+		HosterState(String hoster, int threads) {
+			this.hoster = hoster;
+			this.threads = threads;
+		}
+
+		synchronized int getThreads() {
+			return threads;
+		}
+
+		synchronized double getAverageThroughput() {
+			return averageThroughput;
+		}
+
+		synchronized void onCompleted(int usedThreads, double throughput) {
+			if (averageThroughput == 0) {
+				averageThroughput = throughput;
+			} else if (usedThreads == threads) {
+				// Only samples of the current setting decide about the next step
+				int previous = threads;
+				threads = throughput >= averageThroughput * (1 - TOLERANCE) ? clamp(threads + 1) : clamp(threads - 1);
+				if (previous != threads)
+					log.debug("Changed threads of {} from {} to {} ({} B/s, average {} B/s)", hoster, previous, threads, (long) throughput, (long) averageThroughput);
+			}
+			averageThroughput += SMOOTHING * (throughput - averageThroughput);
+		}
+
+		synchronized void onFailed(int usedThreads) {
+			int previous = threads;
+			threads = clamp(Math.min(threads, usedThreads) / 2);
+			if (previous != threads)
+				log.debug("Changed threads of {} from {} to {} after a failed download", hoster, previous, threads);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package de.theholyexception.mediamanager.download;
+
+/**
+ * Decides whether a queued job of the {@link DownloadExecutor} may be started right now.
+ * The executor only asks the policy for jobs that would otherwise be started, so implementations
+ * can keep track of the running jobs through {@link #onStart(DownloadExecutor.Job)} and {@link #onFinish(DownloadExecutor.Job)}.
+ */
+public interface AdmissionPolicy {
+
+	/**
+	 * @param job The queued job
+	 * @return Decision for the job
+	 */
+	Decision check(DownloadExecutor.Job job);
+
+	/**
+	 * Called after a job has been admitted by every policy and is about to be started.
+	 */
+	void onStart(DownloadExecutor.Job job);
+
+	/**
+	 * Called after a started job has finished.
+	 */
+	void onFinish(DownloadExecutor.Job job);
+
+	/**
+	 * @return Human readable reason why a job has been rejected
+	 */
+	default String getRejectReason(DownloadExecutor.Job job) {
+		return "Rejected by " + getClass().getSimpleName();
+	}
+
+	enum Decision {
+		/** The job may be started */
+		ADMIT,
+		/** The job has to stay in the queue and is checked again later */
+		WAIT,
+		/** The job can never be started and is removed from the queue */
+		REJECT
+	}
+}
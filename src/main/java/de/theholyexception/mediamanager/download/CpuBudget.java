@@ -0,0 +1,55 @@
+package de.theholyexception.mediamanager.download;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Determines how many CPUs the process may actually use. Next to the processors of the JVM the cpu quota
+ * of the cgroup is read, a container limited to 1.5 CPUs on a 16 core host then counts as 2 instead of 16.
+ */
+@Slf4j
+public class CpuBudget {
+
+	private static final Path CGROUP_V2_MAX = Path.of("/sys/fs/cgroup/cpu.max");
+	private static final Path CGROUP_V1_QUOTA = Path.of("/sys/fs/cgroup/cpu/cpu.cfs_quota_us");
+	private static final Path CGROUP_V1_PERIOD = Path.of("/sys/fs/cgroup/cpu/cpu.cfs_period_us");
+
+	private CpuBudget() {}
+
+	/**
+	 * @return Number of usable CPUs, at least 1
+	 */
+	public static int getAvailableCpus() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		double quota = getCgroupQuota();
+		if (quota <= 0)
+			return processors;
+		return Math.max(1, Math.min(processors, (int) Math.ceil(quota)));
+	}
+
+	/**
+	 * @return CPU quota of the cgroup in CPUs, -1 if there is no quota or it can not be read
+	 */
+	public static double getCgroupQuota() {
+		try {
+			if (Files.isReadable(CGROUP_V2_MAX)) {
+				// Format: "<quota> <period>", quota is "max" without limit
+				String[] parts = Files.readString(CGROUP_V2_MAX).trim().split("\\s+");
+				if (parts.length == 2 && !"max".equals(parts[0]))
+					return Double.parseDouble(parts[0]) / Double.parseDouble(parts[1]);
+				return -1;
+			}
+			if (Files.isReadable(CGROUP_V1_QUOTA) && Files.isReadable(CGROUP_V1_PERIOD)) {
+				long quota = Long.parseLong(Files.readString(CGROUP_V1_QUOTA).trim());
+				long period = Long.parseLong(Files.readString(CGROUP_V1_PERIOD).trim());
+				return quota > 0 && period > 0 ? (double) quota / period : -1;
+			}
+		} catch (IOException | NumberFormatException ex) {
+			log.debug("Failed to read the cgroup cpu quota", ex);
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,251 @@
+package de.theholyexception.mediamanager.download;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds back downloads while the temp folder or the target does not have enough free space.
+ * <p>
+ * Every running download reserves its expected size on the file store of the temp folder and,
+ * if it is a different one, on the file store of its target. The expected size is the average size
+ * of the previous downloads of the same target, or a configured default. A download is started when
+ * the usable space minus all reservations still leaves the configured minimum free, it is rejected
+ * when it would not even fit on an otherwise empty store.
+ * <p>
+ * The bytes a download has already written to the temp folder are part of the usable space reading,
+ * so they are taken off its temp reservation. A finished download that still has to be copied to
+ * another store keeps its target reservation until the move is done, see {@link #holdForMove}.
+ */
+@Slf4j
+public class DiskSpaceGuard implements AdmissionPolicy {
+
+	/** The usable space is cached for a short time, since every queued job is checked on each dispatch */
+	private static final long USABLE_SPACE_CACHE_MILLIS = 1000;
+	/** Weight of a new sample in the average download size */
+	private static final double SIZE_SMOOTHING = 0.2;
+
+	private final Path tempFolder;
+	private final Function<String, Path> targetResolver;
+	private final long minFreeBytes;
+	private final long defaultEstimateBytes;
+	private final Map<DownloadExecutor.Job, Reservation> reservations = new ConcurrentHashMap<>();
+	private final Map<String, Double> averageSizes = new ConcurrentHashMap<>();
+	private final Map<FileStore, StoreSnapshot> snapshots = new ConcurrentHashMap<>();
+	private final Map<Path, FileStore> fileStores = new ConcurrentHashMap<>();
+
+	/**
+	 * @param tempFolder The download temp folder
+	 * @param targetResolver Resolves the target folder of a job group, may return null
+	 * @param minFreeBytes Space that has to stay free on every store
+	 * @param defaultEstimateBytes Expected size of a download of a target without history
+	 */
+	public DiskSpaceGuard(Path tempFolder, Function<String, Path> targetResolver, long minFreeBytes, long defaultEstimateBytes) {
+		this.tempFolder = tempFolder;
+		this.targetResolver = targetResolver;
+		this.minFreeBytes = minFreeBytes;
+		this.defaultEstimateBytes = defaultEstimateBytes;
+	}
+
+	@Override
+	public Decision check(DownloadExecutor.Job job) {
+		long estimate = estimate(job.getGroup());
+		for (FileStore store : getStores(job.getGroup())) {
+			StoreSnapshot snapshot = getSnapshot(store);
+			if (snapshot == null)
+				continue;
+			if (snapshot.totalSpace - minFreeBytes < estimate)
+				return Decision.REJECT;
+			if (snapshot.usableSpace - getReservedBytes(store) - estimate < minFreeBytes)
+				return Decision.WAIT;
+		}
+		return Decision.ADMIT;
+	}
+
+	@Override
+	public String getRejectReason(DownloadExecutor.Job job) {
+		return "Not enough disk space, expected download size is " + estimate(job.getGroup()) / 1024 / 1024 + " MB";
+	}
+
+	@Override
+	public void onStart(DownloadExecutor.Job job) {
+		Path target = targetResolver.apply(job.getGroup());
+		reservations.put(job, new Reservation(getStore(tempFolder), target == null ? null : getStore(target), estimate(job.getGroup())));
+	}
+
+	@Override
+	public void onFinish(DownloadExecutor.Job job) {
+		// Held reservations are released once the move is done
+		reservations.computeIfPresent(job, (k, reservation) -> reservation.heldBytes >= 0 ? reservation : null);
+	}
+
+	/**
+	 * Registers the bytes a running download has written to the temp folder, they are taken off its temp reservation.
+	 *
+	 * @param job The running job, ignored if it is null or not running
+	 * @param writtenBytes Returns the bytes in the temp folder of the download, must be cheap to call
+	 */
+	public void trackWrittenBytes(DownloadExecutor.Job job, LongSupplier writtenBytes) {
+		Reservation reservation = job == null ? null : reservations.get(job);
+		if (reservation != null)
+			reservation.writtenBytes = writtenBytes;
+	}
+
+	/**
+	 * Keeps the target reservation of a finished download after its job ends, until {@link #release} is called.
+	 * The temp reservation is dropped, the file is already on the temp store. If the target is on the temp store
+	 * the move is a rename and nothing is held.
+	 *
+	 * @param job The running job, ignored if it is null or not running
+	 * @param bytes Size of the file that has to be moved
+	 */
+	public void holdForMove(DownloadExecutor.Job job, long bytes) {
+		Reservation reservation = job == null ? null : reservations.get(job);
+		if (reservation != null)
+			reservation.heldBytes = Math.max(0, bytes);
+	}
+
+	/**
+	 * Releases the reservation of a job, called once the move of a held download is done or has been given up.
+	 */
+	public void release(DownloadExecutor.Job job) {
+		if (job != null)
+			reservations.remove(job);
+	}
+
+	/**
+	 * Records the size of a finished download, it is used to estimate the next downloads of the target.
+	 *
+	 * @param group Group of the download, the target identifier
+	 * @param bytes Size of the downloaded file
+	 */
+	public void recordSize(String group, long bytes) {
+		if (bytes <= 0)
+			return;
+		averageSizes.merge(group, (double) bytes, (avg, sample) -> avg + SIZE_SMOOTHING * (sample - avg));
+	}
+
+	private long estimate(String group) {
+		Double average = averageSizes.get(group);
+		return average == null ? defaultEstimateBytes : average.longValue();
+	}
+
+	private long getReservedBytes(FileStore store) {
+		long reserved = 0;
+		for (Reservation reservation : reservations.values())
+			reserved += reservation.getBytes(store);
+		return reserved;
+	}
+
+	private Set<FileStore> getStores(String group) {
+		Set<FileStore> stores = new HashSet<>(2);
+		FileStore tempStore = getStore(tempFolder);
+		if (tempStore != null)
+			stores.add(tempStore);
+		Path target = targetResolver.apply(group);
+		if (target != null) {
+			FileStore targetStore = getStore(target);
+			if (targetStore != null)
+				stores.add(targetStore);
+		}
+		return stores;
+	}
+
+	private FileStore getStore(Path path) {
+		FileStore store = fileStores.get(path);
+		if (store != null)
+			return store;
+		try {
+			// The target folder might not exist yet, use the closest existing parent
+			Path existing = path.toAbsolutePath();
+			while (existing != null && !Files.exists(existing))
+				existing = existing.getParent();
+			if (existing == null)
+				return null;
+			store = Files.getFileStore(existing);
+			if (existing.equals(path.toAbsolutePath()))
+				fileStores.put(path, store);
+			return store;
+		} catch (IOException ex) {
+			log.warn("Failed to resolve the file store of {}", path, ex);
+			return null;
+		}
+	}
+
+	private StoreSnapshot getSnapshot(FileStore store) {
+		long now = System.currentTimeMillis();
+		StoreSnapshot snapshot = snapshots.get(store);
+		if (snapshot != null && now - snapshot.timestamp < USABLE_SPACE_CACHE_MILLIS)
+			return snapshot;
+		try {
+			snapshot = new StoreSnapshot(store.getUsableSpace(), store.getTotalSpace(), now);
+			snapshots.put(store, snapshot);
+			return snapshot;
+		} catch (IOException ex) {
+			log.warn("Failed to read the usable space of {}", store, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * @return Current headroom of the temp folder and every given target folder
+	 */
+	public List<Headroom> getHeadroom(Map<String, Path> folders) {
+		List<Headroom> result = new ArrayList<>();
+		Map<String, Path> all = new LinkedHashMap<>();
+		all.put("tmp", tempFolder);
+		all.putAll(folders);
+		for (Map.Entry<String, Path> entry : all.entrySet()) {
+			FileStore store = getStore(entry.getValue());
+			StoreSnapshot snapshot = store == null ? null : getSnapshot(store);
+			if (snapshot == null)
+				continue;
+			long reserved = getReservedBytes(store);
+			result.add(new Headroom(entry.getKey(), store.name(), snapshot.usableSpace, reserved,
+				snapshot.usableSpace - reserved - minFreeBytes));
+		}
+		return result;
+	}
+
+	/**
+	 * Free space of a folder after all reservations and the minimum free space have been subtracted.
+	 */
+	public record Headroom(String name, String store, long usableBytes, long reservedBytes, long headroomBytes) {
+	}
+
+	private static class Reservation {
+		private final FileStore tempStore;
+		private final FileStore targetStore;
+		private final long estimate;
+		private volatile LongSupplier writtenBytes;
+		/** Bytes held on the target store until the move is done, -1 while the download is running */
+		private volatile long heldBytes = -1;
+
+		private Reservation(FileStore tempStore, FileStore targetStore, long estimate) {
+			this.tempStore = tempStore;
+			this.targetStore = targetStore;
+			this.estimate = estimate;
+		}
+
+		private long getBytes(FileStore store) {
+			boolean separateTarget = targetStore != null && !targetStore.equals(tempStore);
+			if (heldBytes >= 0)
+				return separateTarget && store.equals(targetStore) ? heldBytes : 0;
+			if (store.equals(tempStore)) {
+				LongSupplier written = writtenBytes;
+				return written == null ? estimate : Math.max(0, estimate - written.getAsLong());
+			}
+			return separateTarget && store.equals(targetStore) ? estimate : 0;
+		}
+	}
+
+	private record StoreSnapshot(long usableSpace, long totalSpace, long timestamp) {
+	}
+}
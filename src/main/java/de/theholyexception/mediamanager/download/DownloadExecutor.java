@@ -0,0 +1,569 @@
+package de.theholyexception.mediamanager.download;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes download related jobs with a concurrency limit that can be changed at runtime.
+ * Jobs are queued internally and only handed to the underlying executor once a permit is available,
+ * so waiting jobs never occupy a thread. When the runtime supports it, jobs run on virtual threads,
+ * otherwise a cached platform thread pool is used which never grows beyond the concurrency limit.
+ * <p>
+ * Queued jobs are ordered by their {@link DownloadPriority}. Every priority level is worth
+ * {@link #agingMillis} of waiting time, so low priority jobs still move forward over time.
+ * Jobs are grouped (for example by target) and every running job of a group delays the next job
+ * of the same group by {@link #fairnessMillis}, which keeps one group from taking every slot.
+ * <p>
+ * {@link AdmissionPolicy admission policies} can hold back single jobs, the jobs behind them are started
+ * instead and the held back jobs are checked again every {@link #ADMISSION_RECHECK_MILLIS}.
+ * Jobs that are rejected by a policy are removed from the queue and their listener is informed.
+ * <p>
+ * Queue positions are published at most once every {@link #POSITION_PUBLISH_MILLIS}, a burst of starts
+ * or submits only sorts the queue and informs the listeners once.
+ */
+@Slf4j
+public class DownloadExecutor {
+
+    private static final String DEFAULT_GROUP = "";
+    private static final long ADMISSION_RECHECK_MILLIS = 1000;
+    private static final long POSITION_PUBLISH_MILLIS = 1000;
+    private static final ThreadLocal<Job> currentJob = new ThreadLocal<>();
+
+    @Getter
+    private final String name;
+    @Getter
+    private final boolean virtualThreads;
+    private final ExecutorService executorService;
+    private final AdjustableSemaphore permits;
+    private final Map<String, TreeSet<Job>> queues = new HashMap<>();
+    private final Map<String, Integer> runningPerGroup = new HashMap<>();
+    private final Set<Thread> workerThreads = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final Object positionLock = new Object();
+    private long sequence = 0;
+    private int queuedCount = 0;
+    @Getter
+    private volatile int maxConcurrency;
+    @Getter @Setter
+    private volatile long agingMillis = 0;
+    @Getter @Setter
+    private volatile long fairnessMillis = 0;
+    private final List<AdmissionPolicy> admissionPolicies = new CopyOnWriteArrayList<>();
+    /** Runs the admission rechecks and the queue position updates */
+    private ScheduledExecutorService timer;
+    private boolean admissionRecheckScheduled = false;
+    private boolean positionPublishScheduled = false;
+    @Getter
+    private volatile boolean shutdown = false;
+
+    /**
+     * Creates a new executor.
+     *
+     * @param name Name of the executor, also used as thread name prefix
+     * @param maxConcurrency Number of jobs that may run at the same time
+     * @param preferVirtualThreads Use virtual threads if the runtime supports them
+     */
+    public DownloadExecutor(String name, int maxConcurrency, boolean preferVirtualThreads) {
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new AdjustableSemaphore(maxConcurrency);
+
+        ExecutorService virtualExecutor = preferVirtualThreads ? createVirtualThreadExecutor(name) : null;
+        if (virtualExecutor != null) {
+            this.virtualThreads = true;
+            this.executorService = virtualExecutor;
+            log.info("{} is using virtual threads", name);
+        } else {
+            this.virtualThreads = false;
+            AtomicInteger counter = new AtomicInteger();
+            this.executorService = Executors.newCachedThreadPool(runnable -> new Thread(runnable, name + "-" + counter.incrementAndGet()));
+            if (preferVirtualThreads)
+                log.info("Virtual threads are not supported by this runtime, {} is using platform threads", name);
+        }
+    }
+
+    /**
+     * Queues a job for execution with the default priority.
+     *
+     * @param runnable The work to execute
+     * @return Handle of the queued job
+     */
+    public Job submit(Runnable runnable) {
+        return submit(runnable, DownloadPriority.MANUAL, DEFAULT_GROUP, null, null);
+    }
+
+    /**
+     * Queues a job for execution.
+     *
+     * @param runnable The work to execute
+     * @param priority Priority class of the job
+     * @param group Fairness group of the job, for example the target identifier
+     * @param hoster Hoster key of the job, may be null
+     * @param listener Optional listener for queue position changes and rejections
+     * @return Handle of the queued job
+     */
+    public Job submit(Runnable runnable, DownloadPriority priority, String group, String hoster, JobListener listener) {
+        Job job = new Job(runnable, priority, group == null ? DEFAULT_GROUP : group, hoster, listener);
+        synchronized (this) {
+            job.score = job.enqueueTime + priority.getLevel() * agingMillis;
+            job.sequence = sequence++;
+            queues.computeIfAbsent(job.group, k -> new TreeSet<>(Job.QUEUE_ORDER)).add(job);
+            queuedCount++;
+        }
+        dispatch();
+        if (job.state == JobState.QUEUED)
+            schedulePositionPublish();
+        return job;
+    }
+
+    /**
+     * Adds a policy that is asked before a queued job is started.
+     *
+     * @param policy The policy
+     */
+    public void addAdmissionPolicy(AdmissionPolicy policy) {
+        admissionPolicies.add(policy);
+        dispatch();
+    }
+
+    /**
+     * Removes a job from the queue if it has not been started yet.
+     *
+     * @param job The job to abort
+     * @return true if the job was removed, false if it is already running or completed
+     */
+    public boolean abort(Job job) {
+        synchronized (this) {
+            if (job.state != JobState.QUEUED)
+                return false;
+            removeFromQueue(job);
+            job.state = JobState.ABORTED;
+        }
+        schedulePositionPublish();
+        return true;
+    }
+
+    /**
+     * Stops starting queued jobs. Running jobs are not interrupted and queued jobs stay queued.
+     */
+    public void shutdown() {
+        shutdown = true;
+        synchronized (this) {
+            if (timer != null)
+                timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits until no job is running anymore and, unless the executor is shut down, the queue is empty.
+     *
+     * @param deadline Time in milliseconds since the epoch after which the method gives up
+     * @return true if the executor is idle
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized boolean awaitIdle(long deadline) throws InterruptedException {
+        long remaining;
+        while ((activeCount.get() > 0 || (!shutdown && queuedCount > 0)) && (remaining = deadline - System.currentTimeMillis()) > 0)
+            wait(remaining);
+        return activeCount.get() == 0 && (shutdown || queuedCount == 0);
+    }
+
+    /**
+     * Changes the number of jobs that may run at the same time.
+     * Running jobs are never interrupted, when the limit is lowered the executor
+     * simply waits until enough jobs have finished before starting new ones.
+     *
+     * @param value The new concurrency limit
+     */
+    public void setMaxConcurrency(int value) {
+        if (value < 1)
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        synchronized (this) {
+            int delta = value - maxConcurrency;
+            maxConcurrency = value;
+            if (delta > 0)
+                permits.release(delta);
+            else if (delta < 0)
+                permits.reducePermits(-delta);
+        }
+        log.debug("Changed concurrency of {} to {}", name, value);
+        dispatch();
+    }
+
+    /**
+     * Starts queued jobs as long as permits are available.
+     */
+    private void dispatch() {
+        List<Job> started = new ArrayList<>();
+        Map<Job, String> rejected = new LinkedHashMap<>();
+        while (true) {
+            Job job;
+            synchronized (this) {
+                if (shutdown || queuedCount == 0 || !permits.tryAcquire())
+                    break;
+                job = selectNextJob(rejected);
+                if (job == null) {
+                    permits.release();
+                    // Every remaining job is held back by an admission policy
+                    if (queuedCount > 0)
+                        scheduleAdmissionRecheck();
+                    break;
+                }
+                removeFromQueue(job);
+                for (AdmissionPolicy policy : admissionPolicies)
+                    policy.onStart(job);
+                runningPerGroup.merge(job.group, 1, Integer::sum);
+                job.state = JobState.RUNNING;
+                // Counted under the lock, awaitIdle must never see the job neither queued nor active
+                activeCount.incrementAndGet();
+            }
+            try {
+                executorService.execute(() -> run(job));
+                started.add(job);
+            } catch (RejectedExecutionException ex) {
+                log.error("{} rejected a job", name, ex);
+                finish(job, JobState.ABORTED);
+                break;
+            }
+        }
+
+        for (Job job : started)
+            job.updatePosition(0);
+        rejected.forEach(Job::reject);
+        if (!started.isEmpty() || !rejected.isEmpty())
+            schedulePositionPublish();
+    }
+
+    /**
+     * Picks the queued job with the lowest effective score.
+     * Only the first admitted job of every group has to be compared since the groups are sorted by score.
+     * Jobs that are rejected by a policy are removed from the queue and collected in {@code rejected}.
+     *
+     * @return The next job or null if every queued job is held back by an admission policy
+     */
+    private Job selectNextJob(Map<Job, String> rejected) {
+        Job best = null;
+        long bestScore = Long.MAX_VALUE;
+        List<Job> removed = new ArrayList<>();
+        for (TreeSet<Job> groupQueue : queues.values()) {
+            for (Job job : groupQueue) {
+                String rejectReason = null;
+                boolean admitted = true;
+                for (AdmissionPolicy policy : admissionPolicies) {
+                    AdmissionPolicy.Decision decision = policy.check(job);
+                    if (decision == AdmissionPolicy.Decision.REJECT)
+                        rejectReason = policy.getRejectReason(job);
+                    if (decision != AdmissionPolicy.Decision.ADMIT) {
+                        admitted = false;
+                        break;
+                    }
+                }
+                if (rejectReason != null) {
+                    removed.add(job);
+                    rejected.put(job, rejectReason);
+                    continue;
+                }
+                if (!admitted)
+                    continue;
+                long score = effectiveScore(job);
+                if (best == null || score < bestScore || (score == bestScore && job.sequence < best.sequence)) {
+                    best = job;
+                    bestScore = score;
+                }
+                break;
+            }
+        }
+        for (Job job : removed) {
+            removeFromQueue(job);
+            job.state = JobState.ABORTED;
+        }
+        return best;
+    }
+
+    /**
+     * Runs {@link #dispatch()} again after a short delay, used while jobs are held back by the admission policy.
+     */
+    private synchronized void scheduleAdmissionRecheck() {
+        if (admissionRecheckScheduled || shutdown)
+            return;
+        admissionRecheckScheduled = true;
+        getTimer().schedule(() -> {
+            synchronized (this) {
+                admissionRecheckScheduled = false;
+            }
+            dispatch();
+        }, ADMISSION_RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes the queue positions after {@link #POSITION_PUBLISH_MILLIS}, changes until then are published together.
+     */
+    private synchronized void schedulePositionPublish() {
+        if (positionPublishScheduled || shutdown)
+            return;
+        positionPublishScheduled = true;
+        getTimer().schedule(() -> {
+            synchronized (this) {
+                positionPublishScheduled = false;
+            }
+            publishQueuePositions();
+        }, POSITION_PUBLISH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name + "-Timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+    private long effectiveScore(Job job) {
+        return job.score + runningPerGroup.getOrDefault(job.group, 0) * fairnessMillis;
+    }
+
+    private void removeFromQueue(Job job) {
+        TreeSet<Job> groupQueue = queues.get(job.group);
+        if (groupQueue != null && groupQueue.remove(job)) {
+            queuedCount--;
+            if (groupQueue.isEmpty())
+                queues.remove(job.group);
+        }
+    }
+
+    /**
+     * The job handle returned by {@link #submit} may be assigned after the job has already started,
+     * the job itself can look up its handle here.
+     *
+     * @return The job the calling thread is running, null if it is not running a job of any executor
+     */
+    public static Job currentJob() {
+        return currentJob.get();
+    }
+
+    private void run(Job job) {
+        Thread current = Thread.currentThread();
+        workerThreads.add(current);
+        currentJob.set(job);
+        try {
+            job.runnable.run();
+        } catch (Exception ex) {
+            log.error("Unhandled exception in {}", name, ex);
+        } finally {
+            currentJob.remove();
+            workerThreads.remove(current);
+            completedCount.incrementAndGet();
+            finish(job, JobState.COMPLETED);
+            dispatch();
+        }
+    }
+
+    private void finish(Job job, JobState state) {
+        synchronized (this) {
+            job.state = state;
+            runningPerGroup.computeIfPresent(job.group, (k, v) -> v <= 1 ? null : v - 1);
+            for (AdmissionPolicy policy : admissionPolicies)
+                policy.onFinish(job);
+        }
+        activeCount.decrementAndGet();
+        permits.release();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Informs the listeners of all queued jobs about their current position.
+     * Listeners are only called when the position actually changed.
+     */
+    private void publishQueuePositions() {
+        synchronized (positionLock) {
+            List<Job> ordered;
+            Map<Job, Long> scores = new HashMap<>();
+            synchronized (this) {
+                ordered = new ArrayList<>(queuedCount);
+                for (TreeSet<Job> groupQueue : queues.values())
+                    ordered.addAll(groupQueue);
+                for (Job job : ordered)
+                    scores.put(job, effectiveScore(job));
+            }
+            // Sorted outside of the executor lock, the scores are a snapshot taken under it
+            ordered.sort(Comparator.<Job>comparingLong(scores::get).thenComparingLong(job -> job.sequence));
+            for (int i = 0; i < ordered.size(); i++)
+                ordered.get(i).updatePosition(i + 1);
+        }
+    }
+
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    public synchronized int getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * @return Number of queued jobs per priority class
+     */
+    public synchronized Map<DownloadPriority, Integer> getQueuedCountByPriority() {
+        Map<DownloadPriority, Integer> result = new EnumMap<>(DownloadPriority.class);
+        for (TreeSet<Job> groupQueue : queues.values())
+            for (Job job : groupQueue)
+                result.merge(job.priority, 1, Integer::sum);
+        return result;
+    }
+
+    /**
+     * @return Number of queued jobs per hoster, jobs without hoster are not counted
+     */
+    public synchronized Map<String, Integer> getQueuedCountByHoster() {
+        Map<String, Integer> result = new HashMap<>();
+        for (TreeSet<Job> groupQueue : queues.values())
+            for (Job job : groupQueue)
+                if (job.hoster != null)
+                    result.merge(job.hoster, 1, Integer::sum);
+        return result;
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * @return Snapshot of the threads that are currently executing jobs
+     */
+    public List<Thread> getThreadList() {
+        return new ArrayList<>(workerThreads);
+    }
+
+    /**
+     * Creates a thread-per-task executor with named virtual threads through reflection,
+     * the application is compiled for Java 17 where the API is not available.
+     *
+     * @return ExecutorService or null if virtual threads are not supported
+     */
+    private static ExecutorService createVirtualThreadExecutor(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    public enum JobState {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        ABORTED
+    }
+
+    /**
+     * Handle of a job that has been submitted to a {@link DownloadExecutor}.
+     */
+    public static class Job {
+        private static final Comparator<Job> QUEUE_ORDER = Comparator.<Job>comparingLong(job -> job.score).thenComparingLong(job -> job.sequence);
+
+        private final Runnable runnable;
+        @Getter
+        private final DownloadPriority priority;
+        @Getter
+        private final String group;
+        @Getter
+        private final String hoster;
+        @Getter
+        private final long enqueueTime = System.currentTimeMillis();
+        private final JobListener listener;
+        private long score;
+        private long sequence;
+        @Getter
+        private volatile int queuePosition = -1;
+        @Getter
+        private volatile JobState state = JobState.QUEUED;
+
+        private Job(Runnable runnable, DownloadPriority priority, String group, String hoster, JobListener listener) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.group = group;
+            this.hoster = hoster;
+            this.listener = listener;
+        }
+
+        private void updatePosition(int position) {
+            if (queuePosition == position)
+                return;
+            queuePosition = position;
+            if (listener == null)
+                return;
+            try {
+                listener.onQueuePositionChanged(position);
+            } catch (Exception ex) {
+                log.error("Queue position listener failed", ex);
+            }
+        }
+
+        private void reject(String reason) {
+            log.warn("Job of group {} has been rejected: {}", group, reason);
+            if (listener == null)
+                return;
+            try {
+                listener.onRejected(reason);
+            } catch (Exception ex) {
+                log.error("Rejection listener failed", ex);
+            }
+        }
+
+        public boolean isRunning() {
+            return state == JobState.RUNNING;
+        }
+
+        public boolean isCompleted() {
+            return state == JobState.COMPLETED;
+        }
+    }
+
+    /**
+     * Listener of a single job.
+     */
+    public interface JobListener {
+        /**
+         * Called whenever the position of the job in the queue changes, 0 means the job has been started.
+         */
+        void onQueuePositionChanged(int position);
+
+        /**
+         * Called when an admission policy removed the job from the queue.
+         */
+        default void onRejected(String reason) {
+        }
+    }
+
+    /**
+     * Semaphore that exposes {@link Semaphore#reducePermits(int)} so the limit can be lowered in place.
+     */
+    private static class AdjustableSemaphore extends Semaphore {
+        AdjustableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package de.theholyexception.mediamanager.download;
+
+import de.theholyexception.holyapi.datastorage.sql.Result;
+import de.theholyexception.holyapi.datastorage.sql.Row;
+import de.theholyexception.holyapi.datastorage.sql.interfaces.DataBaseInterface;
+import de.theholyexception.mediamanager.models.DownloadTask;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable journal of the download queue, stored in the download table.
+ * Every state change of a {@link DownloadTask} is written to the journal so the queue
+ * can be restored after a restart. Writes are executed asynchronously by the database interface,
+ * every entry carries a version so a delayed write never overwrites a newer one.
+ */
+@Slf4j
+public class DownloadJournal {
+
+	/**
+	 * Versions have to increase across restarts, so the counter starts at the current time.
+	 */
+	private static final AtomicLong VERSION = new AtomicLong(System.currentTimeMillis() * 1000);
+
+	private final DataBaseInterface db;
+
+	public DownloadJournal(DataBaseInterface db) {
+		this.db = db;
+	}
+
+	/**
+	 * Writes the current state of a task to the journal.
+	 *
+	 * @param task The task
+	 * @param state The journal state of the task
+	 */
+	public void save(DownloadTask task, State state) {
+		write(task.getUuid().toString(), task.getUrl(), task.getContent().getRaw().toJSONString(),
+			state, task.getErrorCount(), task.getRetryTimestamp());
+	}
+
+	/**
+	 * Marks a task as removed, removed entries are purged on the next startup.
+	 *
+	 * @param task The task
+	 */
+	public void remove(DownloadTask task) {
+		save(task, State.REMOVED);
+	}
+
+	/**
+	 * Marks an entry that could not be restored as removed.
+	 *
+	 * @param entry The entry
+	 */
+	public void remove(Entry entry) {
+		write(entry.uuid(), entry.url(), entry.content(), State.REMOVED, 0, 0);
+	}
+
+	private void write(String uuid, String url, String content, State state, int errorCount, long retryTimestamp) {
+		try {
+			db.executeSafe("call saveDownload(?, ?, ?, ?, ?, ?, ?)",
+				uuid,
+				url,
+				content,
+				state.name(),
+				errorCount,
+				retryTimestamp,
+				VERSION.incrementAndGet());
+		} catch (Exception ex) {
+			log.error("Failed to write {} to the download journal", uuid, ex);
+		}
+	}
+
+	/**
+	 * Loads all entries that have not been removed and purges the removed ones.
+	 *
+	 * @return Entries in the order they have been written
+	 */
+	public List<Entry> load() {
+		List<Entry> result = new ArrayList<>();
+		try {
+			Result rs = db.getResult("select * from download where szState <> 'REMOVED' order by nVersion");
+			for (Row row : rs.getTable(0).getRows()) {
+				State state;
+				try {
+					state = State.valueOf(row.get("szState", String.class));
+				} catch (IllegalArgumentException ex) {
+					log.warn("Unknown journal state {} for {}", row.get("szState", String.class), row.get("szUUID", String.class));
+					continue;
+				}
+				result.add(new Entry(
+					row.get("szUUID", String.class),
+					row.get("szURL", String.class),
+					row.get("szContent", String.class),
+					state,
+					row.get("nErrorCount", Integer.class),
+					row.get("nRetryTimestamp", Long.class)));
+			}
+			db.executeSafe("delete from download where szState = 'REMOVED'");
+		} catch (Exception ex) {
+			log.error("Failed to load the download journal", ex);
+		}
+		return result;
+	}
+
+	public enum State {
+		/** Waiting in the queue of the download executor */
+		QUEUED,
+		/** Downloading, the download has to be started again after a restart */
+		RUNNING,
+		/** Failed, the retry scheduler decides when it is started again */
+		FAILED,
+		/** Completed or deleted */
+		REMOVED
+	}
+
+	public record Entry(String uuid, String url, String content, State state, Integer errorCount, Long retryTimestamp) {
+	}
+}
@@ -0,0 +1,20 @@
+package de.theholyexception.mediamanager.download;
+
+import lombok.Getter;
+
+/**
+ * Priority classes used by the {@link DownloadExecutor} to order queued downloads.
+ * A lower level is started first, waiting time ages every job towards the front of the queue.
+ */
+public enum DownloadPriority {
+	MANUAL(0),
+	RETRY(1),
+	AUTOLOADER(2);
+
+	@Getter
+	private final int level;
+
+	DownloadPriority(int level) {
+		this.level = level;
+	}
+}
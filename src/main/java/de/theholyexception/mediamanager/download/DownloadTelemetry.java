@@ -0,0 +1,140 @@
+package de.theholyexception.mediamanager.download;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Progress and throughput of a single download.
+ * <p>
+ * The downloaders only report the progress as a fraction, the transferred bytes are measured
+ * by the caller (for example from the size of the temp folder). Samples are taken at most once per
+ * {@link #SAMPLE_INTERVAL_MILLIS}, speed and progress rate are smoothed with an exponentially weighted
+ * moving average. A download counts as stalled when neither the progress nor the bytes increased
+ * within the stall timeout.
+ */
+public class DownloadTelemetry {
+
+	public static final long SAMPLE_INTERVAL_MILLIS = 1000;
+	/** Weight of a new sample in the moving averages */
+	private static final double SMOOTHING = 0.3;
+
+	private final long stallTimeoutMillis;
+	private long startTime;
+	private long lastSampleTime;
+	private long lastAdvanceTime;
+	private double progress;
+	private long bytesDone;
+	private long bytesTotal;
+	private double speed;
+	private double progressRate;
+	private boolean stalled;
+
+	/**
+	 * @param stallTimeoutMillis Time without any progress after which the download counts as stalled, 0 to disable
+	 */
+	public DownloadTelemetry(long stallTimeoutMillis) {
+		this.stallTimeoutMillis = stallTimeoutMillis;
+	}
+
+	/**
+	 * Starts a new measurement, called when a download attempt begins.
+	 */
+	public synchronized void reset(long now) {
+		startTime = now;
+		lastSampleTime = 0;
+		lastAdvanceTime = now;
+		progress = 0;
+		bytesDone = 0;
+		bytesTotal = 0;
+		speed = 0;
+		progressRate = 0;
+		stalled = false;
+	}
+
+	/**
+	 * Feeds a progress update of the downloader.
+	 *
+	 * @param progress Progress between 0 and 1
+	 * @param bytesSupplier Supplies the bytes transferred so far, only called when a sample is taken
+	 * @param now Current time in milliseconds
+	 * @return true if a sample has been taken and the telemetry changed
+	 */
+	public synchronized boolean update(double progress, LongSupplier bytesSupplier, long now) {
+		if (startTime == 0)
+			reset(now);
+		if (lastSampleTime != 0 && now - lastSampleTime < SAMPLE_INTERVAL_MILLIS)
+			return false;
+
+		long bytes = bytesSupplier.getAsLong();
+		if (lastSampleTime != 0) {
+			double seconds = (now - lastSampleTime) / 1000d;
+			double sampleSpeed = Math.max(0, bytes - bytesDone) / seconds;
+			double sampleRate = Math.max(0, progress - this.progress) / seconds;
+			speed = speed == 0 ? sampleSpeed : speed + SMOOTHING * (sampleSpeed - speed);
+			progressRate = progressRate == 0 ? sampleRate : progressRate + SMOOTHING * (sampleRate - progressRate);
+		}
+		if (progress > this.progress || bytes > bytesDone) {
+			lastAdvanceTime = now;
+			stalled = false;
+		}
+
+		this.progress = progress;
+		bytesDone = bytes;
+		// The total is extrapolated from the progress, it becomes more accurate the further the download is
+		bytesTotal = progress > 0.01 && bytes > 0 ? Math.round(bytes / progress) : 0;
+		lastSampleTime = now;
+		return true;
+	}
+
+	/**
+	 * Re-evaluates the stall state, has to be called periodically since a stalled downloader sends no updates.
+	 *
+	 * @param now Current time in milliseconds
+	 * @return true if the stall state changed
+	 */
+	public synchronized boolean checkStall(long now) {
+		boolean isStalled = stallTimeoutMillis > 0 && startTime != 0 && now - lastAdvanceTime > stallTimeoutMillis;
+		if (isStalled == stalled)
+			return false;
+		stalled = isStalled;
+		return true;
+	}
+
+	public synchronized double getProgress() {
+		return progress;
+	}
+
+	public synchronized long getBytesDone() {
+		return bytesDone;
+	}
+
+	public synchronized long getBytesTotal() {
+		return bytesTotal;
+	}
+
+	/**
+	 * @return Smoothed speed in bytes per second
+	 */
+	public synchronized long getSpeed() {
+		return Math.round(speed);
+	}
+
+	/**
+	 * @return Estimated remaining seconds, -1 if unknown
+	 */
+	public synchronized long getEtaSeconds() {
+		if (progressRate <= 0 || progress <= 0)
+			return -1;
+		return Math.round((1 - progress) / progressRate);
+	}
+
+	public synchronized boolean isStalled() {
+		return stalled;
+	}
+
+	/**
+	 * @return Time since the last progress in milliseconds
+	 */
+	public synchronized long getMillisSinceProgress(long now) {
+		return startTime == 0 ? 0 : now - lastAdvanceTime;
+	}
+}
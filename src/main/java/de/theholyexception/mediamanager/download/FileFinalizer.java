@@ -0,0 +1,173 @@
+package de.theholyexception.mediamanager.download;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Moves finished downloads from the temp folder to their target on a dedicated I/O executor,
+ * so a slow copy never holds a download slot.
+ * <p>
+ * A rename is tried first. If the temp folder and the target are on different file systems the file is
+ * copied with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} into a
+ * partial file next to the target, which is renamed once the size has been verified. The source is only
+ * deleted after the copy is complete. A channel that stops making progress is finished with a plain buffered copy.
+ * <p>
+ * A failed move is retried with a growing delay, the source stays in the temp folder until a move succeeds.
+ * The retries are scheduled without holding a finalizer thread.
+ */
+@Slf4j
+public class FileFinalizer {
+
+    private static final String PARTIAL_SUFFIX = ".part";
+    /** Number of transferTo calls in a row without progress before the buffered copy takes over */
+    private static final int MAX_STALLED_TRANSFERS = 3;
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    @Getter
+    private final DownloadExecutor executor;
+    private final AtomicLong renamedFiles = new AtomicLong();
+    private final AtomicLong copiedFiles = new AtomicLong();
+    private final AtomicLong copiedBytes = new AtomicLong();
+    private final AtomicLong failedFiles = new AtomicLong();
+    private final AtomicLong retriedMoves = new AtomicLong();
+    private final int maxRetries;
+    private final long retryDelayMillis;
+
+    /**
+     * @param threads Number of moves that may run at the same time
+     * @param preferVirtualThreads Use virtual threads if the runtime supports them
+     * @param maxRetries Number of times a failed move is retried
+     * @param retryDelayMillis Delay before the first retry, it doubles with every further retry
+     */
+    public FileFinalizer(int threads, boolean preferVirtualThreads, int maxRetries, long retryDelayMillis) {
+        this.executor = new DownloadExecutor("FileFinalizer", threads, preferVirtualThreads);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryDelayMillis = Math.max(0, retryDelayMillis);
+    }
+
+    /**
+     * Queues the move of a file.
+     *
+     * @param source The finished file in the temp folder
+     * @param target The final location, an existing file is replaced
+     * @param onRetry Called with the cause and the delay in milliseconds whenever a failed move is scheduled again
+     * @return Future that completes with the target once the file is in place,
+     * or exceptionally with the last cause once every retry has failed
+     */
+    public CompletableFuture<Path> move(Path source, Path target, BiConsumer<Exception, Long> onRetry) {
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        submit(source, target, onRetry, future, 0);
+        return future;
+    }
+
+    private void submit(Path source, Path target, BiConsumer<Exception, Long> onRetry, CompletableFuture<Path> future, int attempt) {
+        executor.submit(() -> {
+            try {
+                moveNow(source, target);
+                future.complete(target);
+            } catch (Exception ex) {
+                if (attempt >= maxRetries || executor.isShutdown() || !Files.exists(source)) {
+                    failedFiles.incrementAndGet();
+                    future.completeExceptionally(ex);
+                    return;
+                }
+                retriedMoves.incrementAndGet();
+                long delay = retryDelayMillis << Math.min(attempt, 16);
+                onRetry.accept(ex, delay);
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                    .execute(() -> submit(source, target, onRetry, future, attempt + 1));
+            }
+        });
+    }
+
+    private void moveNow(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            renamedFiles.incrementAndGet();
+            return;
+        } catch (AtomicMoveNotSupportedException ex) {
+            log.debug("Cannot rename {} to {}, copying instead", source, target);
+        }
+
+        long size = Files.size(source);
+        Path partial = target.resolveSibling(target.getFileName() + PARTIAL_SUFFIX);
+        try {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                int stalled = 0;
+                while (position < size && stalled < MAX_STALLED_TRANSFERS) {
+                    long transferred = in.transferTo(position, size - position, out);
+                    if (transferred <= 0 && in.size() <= position)
+                        break;
+                    stalled = transferred > 0 ? 0 : stalled + 1;
+                    position += Math.max(0, transferred);
+                }
+                if (position < size && in.size() > position)
+                    copyBuffered(in, out, position, size);
+                out.force(true);
+            }
+
+            long copied = Files.size(partial);
+            if (copied != size)
+                throw new IOException("Size mismatch after copying " + source + ", expected " + size + " bytes but got " + copied);
+
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Files.deleteIfExists(partial);
+            throw ex;
+        }
+
+        Files.delete(source);
+        copiedFiles.incrementAndGet();
+        copiedBytes.addAndGet(size);
+    }
+
+    /**
+     * Copies the rest of the file with plain reads and writes, used once transferTo stops making progress.
+     */
+    private static void copyBuffered(FileChannel in, FileChannel out, long position, long size) throws IOException {
+        log.debug("transferTo made no progress at {} of {} bytes, continuing with a buffered copy", position, size);
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        while (position < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - position));
+            int read = in.read(buffer, position);
+            if (read < 0)
+                break;
+            buffer.flip();
+            while (buffer.hasRemaining())
+                out.write(buffer, position + buffer.position());
+            position += read;
+        }
+    }
+
+    public long getRenamedFiles() {
+        return renamedFiles.get();
+    }
+
+    public long getCopiedFiles() {
+        return copiedFiles.get();
+    }
+
+    public long getCopiedBytes() {
+        return copiedBytes.get();
+    }
+
+    public long getFailedFiles() {
+        return failedFiles.get();
+    }
+
+    public long getRetriedMoves() {
+        return retriedMoves.get();
+    }
+}
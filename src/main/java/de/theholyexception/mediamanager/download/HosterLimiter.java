@@ -0,0 +1,176 @@
+package de.theholyexception.mediamanager.download;
+
+import de.theholyexception.mediamanager.MediaManagerConfig;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import me.kaigermany.downloaders.DownloaderSelector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits the number of parallel downloads and the bandwidth per hoster.
+ * <p>
+ * The bandwidth limit is a token bucket: it refills with {@code maxBytesPerSecond} up to
+ * {@code burstSeconds} worth of bytes and every finished download is debited with the bytes it
+ * transferred. The downloaders do not expose their streams, so the budget can not throttle a running
+ * download. Instead a hoster that used up its budget does not get new downloads until the bucket
+ * has been refilled, which keeps the average bandwidth of the hoster at the configured limit.
+ */
+@Slf4j
+public class HosterLimiter implements AdmissionPolicy {
+
+	public static final String UNKNOWN_HOSTER = "Unknown";
+
+	private final Map<String, Budget> budgets = new ConcurrentHashMap<>();
+
+	/**
+	 * Resolves the hoster key of a download url, the key matches the names used in the hoster config.
+	 *
+	 * @param url Url of the download
+	 * @return Hoster key, never null
+	 */
+	public static String resolveHoster(String url) {
+		try {
+			String hoster = DownloaderSelector.detectDownloaderByDomain(url);
+			if (hoster != null && !hoster.isEmpty())
+				return hoster;
+		} catch (Exception ex) {
+			log.debug("Failed to detect hoster of {}", url, ex);
+		}
+		return UNKNOWN_HOSTER;
+	}
+
+	@Override
+	public Decision check(DownloadExecutor.Job job) {
+		if (job.getHoster() == null)
+			return Decision.ADMIT;
+		return getBudget(job.getHoster()).canStart() ? Decision.ADMIT : Decision.WAIT;
+	}
+
+	@Override
+	public void onStart(DownloadExecutor.Job job) {
+		if (job.getHoster() != null)
+			getBudget(job.getHoster()).start();
+	}
+
+	@Override
+	public void onFinish(DownloadExecutor.Job job) {
+		if (job.getHoster() != null)
+			getBudget(job.getHoster()).finish();
+	}
+
+	/**
+	 * Debits transferred bytes from the bandwidth budget of a hoster.
+	 *
+	 * @param hoster Hoster key
+	 * @param bytes Number of transferred bytes
+	 */
+	public void consume(String hoster, long bytes) {
+		if (bytes > 0)
+			getBudget(hoster).consume(bytes);
+	}
+
+	/**
+	 * @return Snapshot of all hosters that have been used so far
+	 */
+	public List<Budget> getBudgets() {
+		return new ArrayList<>(budgets.values());
+	}
+
+	public Budget getBudget(String hoster) {
+		return budgets.computeIfAbsent(hoster == null ? UNKNOWN_HOSTER : hoster, HosterLimiter::createBudget);
+	}
+
+	private static Budget createBudget(String hoster) {
+		int maxConcurrent = MediaManagerConfig.Hosters.defaultMaxConcurrent;
+		long maxBytesPerSecond = MediaManagerConfig.Hosters.defaultMaxBytesPerSecond;
+		for (MediaManagerConfig.HosterEntry entry : MediaManagerConfig.Hosters.list) {
+			if (entry.name.equalsIgnoreCase(hoster)) {
+				maxConcurrent = entry.maxConcurrent;
+				maxBytesPerSecond = entry.maxBytesPerSecond;
+				break;
+			}
+		}
+		log.debug("Created budget for hoster {} (maxConcurrent: {}, maxBytesPerSecond: {})", hoster, maxConcurrent, maxBytesPerSecond);
+		return new Budget(hoster, maxConcurrent, maxBytesPerSecond, MediaManagerConfig.Hosters.burstSeconds);
+	}
+
+	/**
+	 * Concurrency and bandwidth budget of a single hoster, a limit of 0 means unlimited.
+	 */
+	public static class Budget {
+		@Getter
+		private final String hoster;
+		@Getter
+		private final int maxConcurrent;
+		@Getter
+		private final long maxBytesPerSecond;
+		private final double capacity;
+		private double tokens;
+		private long lastRefill = System.nanoTime();
+		private int running;
+		private long transferredBytes;
+
+		Budget(String hoster, int maxConcurrent, long maxBytesPerSecond, int burstSeconds) {
+			this.hoster = hoster;
+			this.maxConcurrent = maxConcurrent;
+			this.maxBytesPerSecond = maxBytesPerSecond;
+			this.capacity = (double) maxBytesPerSecond * Math.max(1, burstSeconds);
+			this.tokens = capacity;
+		}
+
+		synchronized boolean canStart() {
+			if (maxConcurrent > 0 && running >= maxConcurrent)
+				return false;
+			if (maxBytesPerSecond <= 0)
+				return true;
+			refill();
+			return tokens > 0;
+		}
+
+		synchronized void start() {
+			running++;
+		}
+
+		synchronized void finish() {
+			if (running > 0)
+				running--;
+		}
+
+		synchronized void consume(long bytes) {
+			transferredBytes += bytes;
+			if (maxBytesPerSecond <= 0)
+				return;
+			refill();
+			// The bucket may go negative, the hoster then has to wait until the debt is paid off
+			tokens -= bytes;
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - lastRefill) / 1_000_000_000d * maxBytesPerSecond);
+			lastRefill = now;
+		}
+
+		public synchronized int getRunning() {
+			return running;
+		}
+
+		public synchronized long getTransferredBytes() {
+			return transferredBytes;
+		}
+
+		/**
+		 * @return Bytes that can currently be transferred without exceeding the budget, may be negative
+		 */
+		public synchronized long getAvailableBytes() {
+			if (maxBytesPerSecond <= 0)
+				return Long.MAX_VALUE;
+			refill();
+			return (long) tokens;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package de.theholyexception.mediamanager.download;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs the CPU-bound work of finished downloads on a bounded pool of platform threads, sized from the
+ * {@link CpuBudget} instead of the number of parallel downloads.
+ * <p>
+ * The downloader muxes the segments with ffmpeg inside its own start call, that work can not be moved onto the pool.
+ * It is throttled with mux slots instead, a download takes a slot once all segments are fetched and returns it
+ * when the downloader is done.
+ * <p>
+ * Pool jobs and muxing downloads take their slots from the same budget, so together they never run more
+ * CPU-bound work than the budget allows.
+ */
+@Slf4j
+public class PostProcessor {
+
+	private static final long HEARTBEAT_MILLIS = 1000;
+
+	@Getter
+	private final DownloadExecutor executor;
+	@Getter
+	private final int slots;
+	/** Shared CPU budget of the pool jobs and the muxing downloads */
+	private final Semaphore cpuSlots;
+	private final AtomicInteger activeMux = new AtomicInteger();
+	private final AtomicLong jobs = new AtomicLong();
+	private final AtomicLong failedJobs = new AtomicLong();
+	private final AtomicLong waitMillis = new AtomicLong();
+	private final AtomicLong runMillis = new AtomicLong();
+	private final AtomicLong maxRunMillis = new AtomicLong();
+	private final AtomicLong muxCount = new AtomicLong();
+	private final AtomicLong muxWaitMillis = new AtomicLong();
+
+	public PostProcessor(int slots) {
+		this.slots = Math.max(1, slots);
+		this.executor = new DownloadExecutor("PostProcess", this.slots, false);
+		this.cpuSlots = new Semaphore(this.slots, true);
+	}
+
+	/**
+	 * Queues a post-processing job, the time it waits in the queue and its runtime are recorded.
+	 */
+	public DownloadExecutor.Job submit(Runnable runnable) {
+		long enqueued = System.currentTimeMillis();
+		return executor.submit(() -> {
+			// Muxing downloads hold slots of the same budget, the job waits until one is free
+			cpuSlots.acquireUninterruptibly();
+			long started = System.currentTimeMillis();
+			waitMillis.addAndGet(started - enqueued);
+			try {
+				runnable.run();
+			} catch (RuntimeException ex) {
+				failedJobs.incrementAndGet();
+				log.error("Post-processing job failed", ex);
+			} finally {
+				cpuSlots.release();
+				long duration = System.currentTimeMillis() - started;
+				runMillis.addAndGet(duration);
+				maxRunMillis.accumulateAndGet(duration, Math::max);
+				jobs.incrementAndGet();
+			}
+		});
+	}
+
+	/**
+	 * Blocks until a mux slot is free. The caller is a download thread, it keeps its download slot while it waits.
+	 * Its segments are complete at that point, so the held slot uses no bandwidth, but it does count against
+	 * the download concurrency until the mux is done.
+	 *
+	 * @param canceled Checked while waiting, the wait ends without a slot once it returns true
+	 * @param heartbeat Called regularly while waiting, so the waiting download is not taken for a stalled one
+	 * @return true if a slot has been taken, false if the wait has been canceled or the thread has been interrupted
+	 */
+	public boolean acquireMuxSlot(BooleanSupplier canceled, Runnable heartbeat) {
+		long start = System.currentTimeMillis();
+		try {
+			while (!cpuSlots.tryAcquire(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (canceled.getAsBoolean())
+					return false;
+				heartbeat.run();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		activeMux.incrementAndGet();
+		muxCount.incrementAndGet();
+		muxWaitMillis.addAndGet(System.currentTimeMillis() - start);
+		return true;
+	}
+
+	public void releaseMuxSlot() {
+		activeMux.decrementAndGet();
+		cpuSlots.release();
+	}
+
+	public int getActiveMuxCount() {
+		return activeMux.get();
+	}
+
+	/**
+	 * @return Number of slots of the budget in use by pool jobs and muxing downloads
+	 */
+	public int getUsedSlots() {
+		return slots - cpuSlots.availablePermits();
+	}
+
+	/**
+	 * @return Number of pool jobs and downloads waiting for a slot
+	 */
+	public int getWaitingCount() {
+		return cpuSlots.getQueueLength();
+	}
+
+	public long getJobs() {
+		return jobs.get();
+	}
+
+	public long getFailedJobs() {
+		return failedJobs.get();
+	}
+
+	public long getAverageWaitMillis() {
+		long count = jobs.get();
+		return count == 0 ? 0 : waitMillis.get() / count;
+	}
+
+	public long getAverageRunMillis() {
+		long count = jobs.get();
+		return count == 0 ? 0 : runMillis.get() / count;
+	}
+
+	public long getMaxRunMillis() {
+		return maxRunMillis.get();
+	}
+
+	public long getMuxCount() {
+		return muxCount.get();
+	}
+
+	public long getAverageMuxWaitMillis() {
+		long count = muxCount.get();
+		return count == 0 ? 0 : muxWaitMillis.get() / count;
+	}
+}
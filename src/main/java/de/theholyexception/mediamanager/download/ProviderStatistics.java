@@ -0,0 +1,202 @@
+package de.theholyexception.mediamanager.download;
+
+import lombok.Getter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scores hosters by the outcomes of their recent downloads, used to pick the provider of an episode
+ * and to rank alternative providers when a download fails over.
+ * <p>
+ * Every outcome is kept for {@link #LONG_WINDOW_MILLIS}. The score uses the short window as soon as it holds
+ * enough samples, so a hoster that breaks or recovers is noticed within the hour, and falls back to the long window otherwise.
+ */
+public class ProviderStatistics {
+
+	public static final long SHORT_WINDOW_MILLIS = 60L * 60L * 1000L;
+	public static final long LONG_WINDOW_MILLIS = 24L * 60L * 60L * 1000L;
+	/** Samples the short window needs before it is used for the score */
+	private static final int MIN_SAMPLES = 3;
+	/** Upper bound of kept outcomes per hoster */
+	private static final int MAX_OUTCOMES = 1000;
+
+	private final Map<String, Deque<Outcome>> outcomes = new ConcurrentHashMap<>();
+
+	/**
+	 * @param hoster Hoster key
+	 * @param bytes Size of the downloaded file
+	 * @param millis Duration of the download
+	 * @param ttfbMillis Time until the first progress, -1 if unknown
+	 */
+	public void recordSuccess(String hoster, long bytes, long millis, long ttfbMillis) {
+		record(hoster, new Outcome(System.currentTimeMillis(), true, bytes > 0 && millis > 0 ? bytes * 1000d / millis : 0, ttfbMillis, null));
+	}
+
+	/**
+	 * @param hoster Hoster key
+	 * @param cause Failure cause, reduced to its class by {@link #classifyCause(String)}
+	 * @param ttfbMillis Time until the first progress, -1 if the download never started
+	 */
+	public void recordFailure(String hoster, String cause, long ttfbMillis) {
+		record(hoster, new Outcome(System.currentTimeMillis(), false, 0, ttfbMillis, classifyCause(cause)));
+	}
+
+	private void record(String hoster, Outcome outcome) {
+		Deque<Outcome> deque = outcomes.computeIfAbsent(hoster, h -> new ArrayDeque<>());
+		synchronized (deque) {
+			deque.addLast(outcome);
+			prune(deque, outcome.timestamp());
+		}
+	}
+
+	private static void prune(Deque<Outcome> deque, long now) {
+		while (!deque.isEmpty() && (deque.size() > MAX_OUTCOMES || now - deque.peekFirst().timestamp() > LONG_WINDOW_MILLIS))
+			deque.removeFirst();
+	}
+
+	/**
+	 * @param hoster Hoster key
+	 * @param windowMillis Size of the window
+	 * @return Statistics of the outcomes within the window
+	 */
+	public Window getWindow(String hoster, long windowMillis) {
+		long now = System.currentTimeMillis();
+		Window window = new Window(windowMillis);
+		Deque<Outcome> deque = outcomes.get(hoster);
+		if (deque == null)
+			return window;
+		synchronized (deque) {
+			prune(deque, now);
+			for (Outcome outcome : deque) {
+				if (now - outcome.timestamp() <= windowMillis)
+					window.add(outcome);
+			}
+		}
+		return window;
+	}
+
+	/**
+	 * @return The short window if it holds enough samples, the long window otherwise
+	 */
+	private Window getScoringWindow(String hoster) {
+		Window window = getWindow(hoster, SHORT_WINDOW_MILLIS);
+		return window.getAttempts() >= MIN_SAMPLES ? window : getWindow(hoster, LONG_WINDOW_MILLIS);
+	}
+
+	/**
+	 * Orders hosters from best to worst. The success rate is scaled by the throughput relative
+	 * to the fastest candidate, so a slightly faster hoster never beats a much more reliable one.
+	 *
+	 * @param hosters Candidate hoster keys
+	 * @return The candidates, best first, hosters with equal scores keep their order
+	 */
+	public List<String> rank(Collection<String> hosters) {
+		Map<String, Double> scores = getScores(hosters);
+		List<String> result = new ArrayList<>(hosters);
+		result.sort(Comparator.comparingDouble((String hoster) -> scores.get(hoster)).reversed());
+		return result;
+	}
+
+	/**
+	 * @param hosters Candidate hoster keys
+	 * @return Score between 0 and 1 of every candidate, relative to the other candidates
+	 */
+	public Map<String, Double> getScores(Collection<String> hosters) {
+		Map<String, Window> windows = new HashMap<>();
+		for (String hoster : hosters)
+			windows.put(hoster, getScoringWindow(hoster));
+		double best = windows.values().stream().mapToDouble(Window::getThroughput).max().orElse(0);
+
+		Map<String, Double> scores = new HashMap<>();
+		windows.forEach((hoster, window) -> {
+			double throughput = window.getThroughput();
+			// Unknown throughput counts as half of the best one
+			double relative = best <= 0 || throughput <= 0 ? 0.5 : throughput / best;
+			scores.put(hoster, window.getSuccessRate() * (0.5 + 0.5 * relative));
+		});
+		return scores;
+	}
+
+	/**
+	 * @return Keys of all hosters with outcomes within the long window
+	 */
+	public Set<String> getHosters() {
+		return new TreeSet<>(outcomes.keySet());
+	}
+
+	/**
+	 * Reduces a failure cause to a short class, the exception name or the first words of the message.
+	 */
+	static String classifyCause(String cause) {
+		if (cause == null || cause.isBlank())
+			return "Unknown";
+		String line = cause.strip().split("\n")[0];
+		int colon = line.indexOf(':');
+		if (colon > 0 && !line.substring(0, colon).contains(" "))
+			return line.substring(line.lastIndexOf('.', colon) + 1, colon);
+		return line.length() > 40 ? line.substring(0, 40) : line;
+	}
+
+	private record Outcome(long timestamp, boolean success, double throughput, long ttfbMillis, String cause) {
+	}
+
+	/**
+	 * Aggregated outcomes of a hoster within a time window.
+	 */
+	public static class Window {
+		@Getter
+		private final long windowMillis;
+		@Getter
+		private int attempts;
+		@Getter
+		private int successes;
+		private double throughputSum;
+		private int throughputSamples;
+		private long ttfbSum;
+		private int ttfbSamples;
+		@Getter
+		private final Map<String, Integer> failureCauses = new TreeMap<>();
+
+		Window(long windowMillis) {
+			this.windowMillis = windowMillis;
+		}
+
+		private void add(Outcome outcome) {
+			attempts++;
+			if (outcome.success())
+				successes++;
+			else
+				failureCauses.merge(outcome.cause(), 1, Integer::sum);
+			if (outcome.throughput() > 0) {
+				throughputSum += outcome.throughput();
+				throughputSamples++;
+			}
+			if (outcome.ttfbMillis() >= 0) {
+				ttfbSum += outcome.ttfbMillis();
+				ttfbSamples++;
+			}
+		}
+
+		/**
+		 * @return Laplace smoothed success rate, 0.5 without any outcome
+		 */
+		public double getSuccessRate() {
+			return (successes + 1d) / (attempts + 2d);
+		}
+
+		/**
+		 * @return Mean throughput of the successful downloads in bytes per second, 0 if unknown
+		 */
+		public double getThroughput() {
+			return throughputSamples == 0 ? 0 : throughputSum / throughputSamples;
+		}
+
+		/**
+		 * @return Mean time to the first progress in milliseconds, -1 if unknown
+		 */
+		public long getTimeToFirstByte() {
+			return ttfbSamples == 0 ? -1 : ttfbSum / ttfbSamples;
+		}
+	}
+}
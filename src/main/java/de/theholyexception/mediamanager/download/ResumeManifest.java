@@ -0,0 +1,211 @@
+package de.theholyexception.mediamanager.download;
+
+import de.theholyexception.mediamanager.util.Utils;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Manifest of a resumable temp folder. The folder is keyed on the task uuid and the source url,
+ * so a retry or a restart of the same download finds the segments of the previous attempts again,
+ * while a changed url always starts in a fresh folder.
+ * <p>
+ * The manifest lists every segment file with its size at the last checkpoint.
+ * A folder is only reused if all listed segments still exist with at least that size,
+ * the downloader recovers its session from them and only fetches what is missing.
+ * Running attempts are checkpointed periodically, so the manifest still lists the segments after a crash.
+ */
+@Slf4j
+public class ResumeManifest {
+
+	public static final String FILE_NAME = ".manifest.json";
+	/** Files modified within this time are taken as still being written by a checkpoint of a running attempt */
+	private static final long SETTLE_MILLIS = 5000;
+
+	@Getter
+	private final File folder;
+	@Getter
+	private final String uuid;
+	@Getter
+	private final String url;
+	@Getter
+	private final long created;
+	@Getter
+	private long updated;
+	@Getter
+	private int attempts;
+	@Getter
+	private double progress;
+	private final Map<String, Long> segments = new LinkedHashMap<>();
+
+	private ResumeManifest(File folder, String uuid, String url, long created) {
+		this.folder = folder;
+		this.uuid = uuid;
+		this.url = url;
+		this.created = created;
+		this.updated = created;
+	}
+
+	/**
+	 * @return The temp folder of the download with the given uuid and url
+	 */
+	public static File resolveFolder(File root, UUID uuid, String url) {
+		return new File(root, UUID.nameUUIDFromBytes((uuid + url).getBytes(StandardCharsets.UTF_8)).toString());
+	}
+
+	/**
+	 * Opens the manifest of a download. The segments of a previous attempt are kept if the manifest
+	 * belongs to the same download and all of its segments are intact, otherwise the folder is wiped.
+	 *
+	 * @param root The temp download folder
+	 * @param uuid Uuid of the task
+	 * @param url Source url of the task
+	 * @return The manifest, already saved to the folder
+	 * @throws IOException if the folder or the manifest can not be written
+	 */
+	public static ResumeManifest open(File root, UUID uuid, String url) throws IOException {
+		File folder = resolveFolder(root, uuid, url);
+		ResumeManifest manifest = load(folder);
+		if (manifest != null && (!manifest.uuid.equals(uuid.toString()) || !manifest.url.equals(url) || !manifest.verify())) {
+			log.warn("Discarding resume data in {}, the segments do not match the manifest", folder.getName());
+			manifest = null;
+		}
+		if (manifest == null) {
+			if (folder.exists())
+				Utils.safeDelete(folder);
+			manifest = new ResumeManifest(folder, uuid.toString(), url, System.currentTimeMillis());
+		}
+		if (!folder.exists() && !folder.mkdirs())
+			throw new IOException("Failed to create temp folder " + folder.getAbsolutePath());
+
+		manifest.attempts++;
+		manifest.save();
+		return manifest;
+	}
+
+	/**
+	 * @param folder A temp folder
+	 * @return The manifest of the folder, null if it has none or it can not be read
+	 */
+	public static ResumeManifest load(File folder) {
+		File file = new File(folder, FILE_NAME);
+		if (!file.isFile())
+			return null;
+		try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			JSONObject json = (JSONObject) new JSONParser().parse(reader);
+			ResumeManifest manifest = new ResumeManifest(folder, (String) json.get("uuid"), (String) json.get("url"),
+				((Number) json.get("created")).longValue());
+			manifest.updated = ((Number) json.get("updated")).longValue();
+			manifest.attempts = ((Number) json.get("attempts")).intValue();
+			manifest.progress = ((Number) json.get("progress")).doubleValue();
+			for (Object o : (JSONArray) json.get("segments")) {
+				JSONObject segment = (JSONObject) o;
+				manifest.segments.put((String) segment.get("name"), ((Number) segment.get("size")).longValue());
+			}
+			return manifest.uuid == null || manifest.url == null ? null : manifest;
+		} catch (Exception ex) {
+			log.warn("Failed to read manifest of {}", folder.getName(), ex);
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if every segment of the manifest still exists with at least its recorded size
+	 */
+	private boolean verify() {
+		for (Map.Entry<String, Long> segment : segments.entrySet()) {
+			File file = new File(folder, segment.getKey());
+			if (!file.isFile() || file.length() < segment.getValue())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Records the segments written so far, called at the end of every attempt.
+	 *
+	 * @param progress Progress of the download between 0 and 1
+	 */
+	public void checkpoint(double progress) {
+		checkpoint(progress, false);
+	}
+
+	/**
+	 * Records the segments written so far.
+	 *
+	 * @param progress Progress of the download between 0 and 1
+	 * @param running true while the downloader may still write, files modified within the last
+	 *                {@link #SETTLE_MILLIS} are then left out since they might be incomplete
+	 */
+	public synchronized void checkpoint(double progress, boolean running) {
+		this.progress = progress;
+		segments.clear();
+		long settled = System.currentTimeMillis() - SETTLE_MILLIS;
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.isFile() || file.getName().startsWith(FILE_NAME))
+					continue;
+				if (running && file.lastModified() > settled)
+					continue;
+				segments.put(file.getName(), file.length());
+			}
+		}
+		try {
+			save();
+		} catch (IOException ex) {
+			log.warn("Failed to write manifest of {}", folder.getName(), ex);
+		}
+	}
+
+	/**
+	 * @return Total size of the segments at the last checkpoint
+	 */
+	public synchronized long getSegmentBytes() {
+		return segments.values().stream().mapToLong(Long::longValue).sum();
+	}
+
+	/**
+	 * @return Number of segments at the last checkpoint
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized void save() throws IOException {
+		updated = System.currentTimeMillis();
+		JSONObject json = new JSONObject();
+		json.put("uuid", uuid);
+		json.put("url", url);
+		json.put("created", created);
+		json.put("updated", updated);
+		json.put("attempts", attempts);
+		json.put("progress", progress);
+		JSONArray segmentArray = new JSONArray();
+		segments.forEach((name, size) -> {
+			JSONObject segment = new JSONObject();
+			segment.put("name", name);
+			segment.put("size", size);
+			segmentArray.add(segment);
+		});
+		json.put("segments", segmentArray);
+
+		// Write a temporary file first, a crash while writing must not leave a broken manifest behind
+		File temp = new File(folder, FILE_NAME + ".tmp");
+		Files.writeString(temp.toPath(), json.toJSONString(), StandardCharsets.UTF_8);
+		Files.move(temp.toPath(), new File(folder, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,150 @@
+package de.theholyexception.mediamanager.download;
+
+import de.theholyexception.mediamanager.models.DownloadTask;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Restarts failed downloads once their retry timestamp has been reached.
+ * Scheduled retries are kept in a {@link DelayQueue}, so the scheduler thread only wakes up
+ * when the next retry is due instead of scanning every task periodically.
+ * <p>
+ * Only one retry can be scheduled per url, a second task with the same url gets its retry disabled.
+ */
+@Slf4j
+public class RetryScheduler {
+
+	private final DelayQueue<Entry> queue = new DelayQueue<>();
+	private final Map<String, Entry> scheduledByUrl = new ConcurrentHashMap<>();
+	private final Consumer<DownloadTask> retryAction;
+	private Thread thread;
+
+	/**
+	 * @param retryAction Called on the scheduler thread for every task that is due
+	 */
+	public RetryScheduler(Consumer<DownloadTask> retryAction) {
+		this.retryAction = retryAction;
+	}
+
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		thread = new Thread(this::run, "Retry Scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	 * Schedules the retry of a failed task at its retry timestamp.
+	 * A previously scheduled retry of the same task is replaced.
+	 *
+	 * @param task The failed task
+	 * @return true if the retry has been scheduled
+	 */
+	public synchronized boolean schedule(DownloadTask task) {
+		long timestamp = task.getRetryTimestamp();
+		if (timestamp <= 0 || task.getErrorCount() <= 0)
+			return false;
+
+		Entry existing = scheduledByUrl.get(task.getUrl());
+		if (existing != null) {
+			if (existing.task != task) {
+				log.warn("Found duplicated retry schedule: {}, disabling retry.", task.getUrl());
+				task.disableRetry();
+				return false;
+			}
+			existing.cancelled = true;
+		}
+
+		Entry entry = new Entry(task, timestamp);
+		scheduledByUrl.put(task.getUrl(), entry);
+		queue.add(entry);
+		return true;
+	}
+
+	/**
+	 * Cancels the scheduled retry of a task, for example because it has been deleted.
+	 *
+	 * @param task The task
+	 */
+	public synchronized void cancel(DownloadTask task) {
+		Entry entry = scheduledByUrl.get(task.getUrl());
+		if (entry != null && entry.task == task) {
+			entry.cancelled = true;
+			scheduledByUrl.remove(task.getUrl());
+		}
+	}
+
+	/**
+	 * @return Number of retries that are currently scheduled
+	 */
+	public int getScheduledCount() {
+		return scheduledByUrl.size();
+	}
+
+	private void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			Entry entry;
+			try {
+				entry = queue.take();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+
+			if (!claim(entry))
+				continue;
+
+			try {
+				log.info("Rescheduling download for {}", entry.task.getUrl());
+				retryAction.accept(entry.task);
+			} catch (Exception ex) {
+				log.error("Failed to reschedule download for {}", entry.task.getUrl(), ex);
+			}
+		}
+	}
+
+	/**
+	 * Removes a due entry from the url index.
+	 *
+	 * @return false if the entry has been cancelled or the task has been started in the meantime
+	 */
+	private synchronized boolean claim(Entry entry) {
+		if (entry.cancelled)
+			return false;
+		scheduledByUrl.remove(entry.task.getUrl(), entry);
+		return entry.task.isFailed() && entry.task.getRetryTimestamp() == entry.timestamp;
+	}
+
+	private static class Entry implements Delayed {
+		private final DownloadTask task;
+		private final long timestamp;
+		private volatile boolean cancelled = false;
+
+		Entry(DownloadTask task, long timestamp) {
+			this.task = task;
+			this.timestamp = timestamp;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(timestamp - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			return Long.compare(timestamp, ((Entry) other).timestamp);
+		}
+	}
+}
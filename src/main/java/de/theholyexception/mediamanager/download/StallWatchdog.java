@@ -0,0 +1,126 @@
+package de.theholyexception.mediamanager.download;
+
+import de.theholyexception.mediamanager.models.DownloadTask;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Scans the running downloads periodically and reclaims the slots of downloads that hang.
+ * A download without any progress for the stall timeout is marked as stalled,
+ * after the cancel timeout its downloader is canceled and the task goes through the normal retry path.
+ * <p>
+ * A hanging downloader sends no progress updates, so the scan is the only place that notices it.
+ */
+@Slf4j
+public class StallWatchdog {
+
+	private final Supplier<Collection<DownloadTask>> tasks;
+	private final long scanIntervalMillis;
+	private final long cancelTimeoutMillis;
+	private final Set<DownloadTask> stalled = ConcurrentHashMap.newKeySet();
+	private final AtomicLong detectedCount = new AtomicLong();
+	private final AtomicLong canceledCount = new AtomicLong();
+	private final AtomicLong cancelFailedCount = new AtomicLong();
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param tasks Supplies the tasks to scan
+	 * @param scanIntervalMillis Interval between two scans
+	 * @param cancelTimeoutMillis Time without progress after which a download is canceled, 0 to only report stalls
+	 */
+	public StallWatchdog(Supplier<Collection<DownloadTask>> tasks, long scanIntervalMillis, long cancelTimeoutMillis) {
+		this.tasks = tasks;
+		this.scanIntervalMillis = scanIntervalMillis;
+		this.cancelTimeoutMillis = cancelTimeoutMillis;
+	}
+
+	public synchronized void start() {
+		if (scheduler != null)
+			return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "Stall Watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::scan, scanIntervalMillis, scanIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null)
+			scheduler.shutdownNow();
+	}
+
+	private void scan() {
+		long now = System.currentTimeMillis();
+		Collection<DownloadTask> snapshot = new ArrayList<>(tasks.get());
+		stalled.retainAll(snapshot);
+
+		for (DownloadTask task : snapshot) {
+			try {
+				check(task, now);
+			} catch (Exception ex) {
+				log.error("Failed to check stall state of {}", task, ex);
+			}
+		}
+	}
+
+	private void check(DownloadTask task, long now) {
+		if (!task.checkStall()) {
+			stalled.remove(task);
+			return;
+		}
+		if (stalled.add(task))
+			detectedCount.incrementAndGet();
+
+		long millisSinceProgress = task.getTelemetry().getMillisSinceProgress(now);
+		if (cancelTimeoutMillis <= 0 || millisSinceProgress < cancelTimeoutMillis || task.isStallCanceled())
+			return;
+
+		String cause = String.format("Download stalled, no progress for %ds at %.2f%%",
+			millisSinceProgress / 1000, task.getTelemetry().getProgress() * 100);
+		if (task.cancelStalled(cause)) {
+			canceledCount.incrementAndGet();
+			log.warn("Canceled stalled download {}: {}", task.getUrl(), cause);
+		} else {
+			cancelFailedCount.incrementAndGet();
+			log.warn("Failed to cancel stalled download {}", task.getUrl());
+		}
+	}
+
+	/**
+	 * @return Number of currently stalled downloads
+	 */
+	public int getStalledCount() {
+		return stalled.size();
+	}
+
+	/**
+	 * @return Number of stalls detected since the start
+	 */
+	public long getDetectedCount() {
+		return detectedCount.get();
+	}
+
+	/**
+	 * @return Number of stalled downloads that have been canceled and handed to the retry path
+	 */
+	public long getCanceledCount() {
+		return canceledCount.get();
+	}
+
+	/**
+	 * @return Number of stalled downloads whose downloader refused to cancel
+	 */
+	public long getCancelFailedCount() {
+		return cancelFailedCount.get();
+	}
+}
@@ -0,0 +1,169 @@
+package de.theholyexception.mediamanager.download;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Deletes temp folders that are not owned by any known download, left behind by failed, canceled or crashed downloads.
+ * <p>
+ * The scan runs on a single low priority thread and deletes file by file with a limited rate,
+ * so it never competes with running downloads for the disk. Folders that changed within the grace period are kept,
+ * a download that is just being set up may not be registered yet.
+ */
+@Slf4j
+public class TempFolderReclaimer {
+
+	private final File root;
+	private final Supplier<Set<File>> ownedFolders;
+	private final long graceMillis;
+	private final long bytesPerSecond;
+	private final AtomicLong scans = new AtomicLong();
+	private final AtomicLong reclaimedFolders = new AtomicLong();
+	private final AtomicLong reclaimedBytes = new AtomicLong();
+	private volatile long lastScan;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param root The temp download folder
+	 * @param ownedFolders Supplies the temp folders of all known downloads
+	 * @param graceMillis Time since the last change before a folder counts as orphaned
+	 * @param bytesPerSecond Maximum deletion rate, 0 for unlimited
+	 */
+	public TempFolderReclaimer(File root, Supplier<Set<File>> ownedFolders, long graceMillis, long bytesPerSecond) {
+		this.root = root;
+		this.ownedFolders = ownedFolders;
+		this.graceMillis = graceMillis;
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * @param intervalMillis Time between two scans
+	 */
+	public synchronized void start(long intervalMillis) {
+		if (scheduler != null)
+			return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "TempFolderReclaimer");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::scan, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null)
+			scheduler.shutdownNow();
+	}
+
+	private void scan() {
+		File[] folders = root.listFiles(TempFolderReclaimer::isTempFolder);
+		if (folders == null)
+			return;
+		scans.incrementAndGet();
+		lastScan = System.currentTimeMillis();
+
+		long startTime = System.currentTimeMillis();
+		long deletedBytes = 0;
+		for (File folder : folders) {
+			try {
+				// Checked per folder, a download may have picked the folder up during the scan
+				if (ownedFolders.get().contains(folder) || System.currentTimeMillis() - getLastModified(folder) < graceMillis)
+					continue;
+				long bytes = deleteRateLimited(folder, startTime, deletedBytes);
+				deletedBytes += bytes;
+				reclaimedFolders.incrementAndGet();
+				reclaimedBytes.addAndGet(bytes);
+				log.info("Reclaimed orphaned temp folder {} ({} bytes)", folder.getName(), bytes);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception ex) {
+				log.warn("Failed to reclaim temp folder {}", folder.getName(), ex);
+			}
+		}
+	}
+
+	/**
+	 * Only folders named by a uuid are created by downloads, everything else in the temp folder is left alone.
+	 */
+	private static boolean isTempFolder(File file) {
+		if (!file.isDirectory())
+			return false;
+		try {
+			UUID.fromString(file.getName());
+			return true;
+		} catch (IllegalArgumentException ex) {
+			return false;
+		}
+	}
+
+	private static long getLastModified(File file) {
+		long lastModified = file.lastModified();
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files)
+				lastModified = Math.max(lastModified, child.isDirectory() ? getLastModified(child) : child.lastModified());
+		}
+		return lastModified;
+	}
+
+	/**
+	 * Deletes a folder recursively, sleeping whenever the deletion gets ahead of the rate limit.
+	 *
+	 * @return Number of deleted bytes
+	 */
+	private long deleteRateLimited(File folder, long startTime, long previousBytes) throws InterruptedException {
+		long deleted = 0;
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleted += deleteRateLimited(file, startTime, previousBytes + deleted);
+					continue;
+				}
+				long size = file.length();
+				if (!file.delete()) {
+					log.warn("Failed to delete file {}", file.getAbsolutePath());
+					continue;
+				}
+				deleted += size;
+				if (bytesPerSecond > 0) {
+					long aheadMillis = (previousBytes + deleted) * 1000L / bytesPerSecond - (System.currentTimeMillis() - startTime);
+					if (aheadMillis > 0)
+						Thread.sleep(aheadMillis);
+				}
+			}
+		}
+		if (!folder.delete())
+			log.warn("Failed to delete dir {}", folder.getAbsolutePath());
+		return deleted;
+	}
+
+	public long getScans() {
+		return scans.get();
+	}
+
+	public long getReclaimedFolders() {
+		return reclaimedFolders.get();
+	}
+
+	public long getReclaimedBytes() {
+		return reclaimedBytes.get();
+	}
+
+	/**
+	 * @return Time of the last scan, 0 if there was none yet
+	 */
+	public long getLastScan() {
+		return lastScan;
+	}
+}
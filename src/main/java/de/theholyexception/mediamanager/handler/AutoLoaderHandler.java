@@ -25,6 +25,7 @@ import org.json.simple.JSONObject;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
@@ -38,6 +39,9 @@ public class AutoLoaderHandler extends Handler {
     private final List<Anime> subscribedAnimes = Collections.synchronizedList(new ArrayList<>());
 
     private SettingProperty<Boolean> spAutoDownload;
+    private SettingProperty<Integer> spUrlResolverThreads;
+    /** Set on shutdown, ends the scan loop of the auto-loader thread */
+    private volatile boolean stopped = false;
     private final Random random = new Random();
     private Boolean initialized = false;
 
@@ -58,7 +62,8 @@ public class AutoLoaderHandler extends Handler {
     @Override
     public void loadConfigurations() {
         super.loadConfigurations();
-        AniworldHelper.urlResolver.updateExecutorService(Executors.newFixedThreadPool(MediaManagerConfig.Autoloader.urlResolverThreads));
+        spUrlResolverThreads = Settings.getSettingProperty("URL_RESOLVER_THREADS", MediaManagerConfig.Autoloader.urlResolverThreads, "systemSettings");
+        spUrlResolverThreads.addSubscriber(AniworldHelper::setUrlResolverThreads);
         spAutoDownload = Settings.getSettingProperty("AUTO_DOWNLOAD", false, "systemSettings");
     }
 
@@ -75,7 +80,8 @@ public class AutoLoaderHandler extends Handler {
             subscribedAnimes.clear();
             subscribedAnimes.addAll(Anime.loadFromDB(db));
 
-            ExecutorHandler handler = new ExecutorHandler(Executors.newFixedThreadPool(10));
+            ExecutorService scanExecutor = Executors.newFixedThreadPool(10);
+            ExecutorHandler handler = new ExecutorHandler(scanExecutor);
             subscribedAnimes.forEach(anime ->
                 handler.putTask(() -> {
                     anime.setScanning(true);
@@ -93,6 +99,7 @@ public class AutoLoaderHandler extends Handler {
                 }, 1)
             );
             handler.awaitGroup(1);
+            scanExecutor.shutdown();
             db.getExecutorHandler().awaitGroup(-1);
 
             if (MediaManagerConfig.Autoloader.enabled)
@@ -707,6 +714,27 @@ public class AutoLoaderHandler extends Handler {
         WebSocketUtils.sendPacket("subscription-updated", TargetSystem.AUTOLOADER, anime.toJSONObject(), null);
     }
 
+    /**
+     * Stops the auto-loader thread and queues the writes of all changed animes,
+     * they are flushed together with the other database writes.
+     */
+    @Override
+    public void shutdown(long deadline) {
+        stopped = true;
+        synchronized (subscribedAnimes) {
+            for (Anime anime : subscribedAnimes) {
+                if (System.currentTimeMillis() > deadline)
+                    break;
+                try {
+                    if (anime.isDeepDirty())
+                        anime.writeToDB(db);
+                } catch (Exception ex) {
+                    log.error("Failed to write {} on shutdown", anime.getTitle(), ex);
+                }
+            }
+        }
+    }
+
     /**
      * Starts the background thread that periodically checks for new episodes.
      * The thread runs in a loop, scanning each subscribed anime for new content
@@ -714,10 +742,13 @@ public class AutoLoaderHandler extends Handler {
      */
     private void startThread() {
         Thread t = new Thread(() -> {
-            while (!Thread.interrupted()) {
+            while (!stopped && !Thread.interrupted()) {
                 try {
                     boolean autoLoad = Boolean.TRUE.equals(spAutoDownload.getValue());
                     for (Anime anime : subscribedAnimes) {
+                        if (stopped)
+                            break;
+
                         // Skip paused anime
                         if (anime.isPaused()) {
                             log.debug("Skipping paused anime: {}", anime.getTitle());
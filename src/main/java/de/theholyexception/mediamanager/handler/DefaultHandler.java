@@ -3,15 +3,25 @@ package de.theholyexception.mediamanager.handler;
 import de.theholyexception.holyapi.datastorage.json.JSONArrayContainer;
 import de.theholyexception.holyapi.datastorage.json.JSONObjectContainer;
 import de.theholyexception.holyapi.datastorage.json.JSONReader;
-import de.theholyexception.holyapi.util.ExecutorTask;
+import de.theholyexception.holyapi.datastorage.sql.interfaces.MySQLInterface;
+import de.theholyexception.holyapi.di.DIInject;
+import de.theholyexception.mediamanager.download.DownloadExecutor;
+import de.theholyexception.mediamanager.download.DownloadJournal;
+import de.theholyexception.mediamanager.download.DownloadPriority;
+import de.theholyexception.mediamanager.download.DownloadTelemetry;
+import de.theholyexception.mediamanager.download.RetryScheduler;
+import de.theholyexception.mediamanager.download.StallWatchdog;
+import de.theholyexception.mediamanager.download.TempFolderReclaimer;
 import de.theholyexception.mediamanager.logging.DownloadLogger;
 import de.theholyexception.mediamanager.models.DownloadTask;
 import de.theholyexception.mediamanager.models.Target;
 import de.theholyexception.mediamanager.settings.SettingProperty;
 import de.theholyexception.mediamanager.settings.Settings;
 import de.theholyexception.mediamanager.util.InitializationException;
+import de.theholyexception.mediamanager.util.JSONArrayStreamHandler;
 import de.theholyexception.mediamanager.MediaManagerConfig;
 import de.theholyexception.mediamanager.util.TargetSystem;
+import de.theholyexception.mediamanager.util.Utils;
 import de.theholyexception.mediamanager.util.WebResponseException;
 import de.theholyexception.mediamanager.util.WebSocketResponse;
 import io.javalin.Javalin;
@@ -26,13 +36,18 @@ import lombok.extern.slf4j.Slf4j;
 import me.kaigermany.downloaders.FFmpeg;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPOutputStream;
 
 import static de.theholyexception.mediamanager.util.WebSocketUtils.*;
@@ -48,8 +63,30 @@ public class DefaultHandler extends Handler {
     /** Map of active download URLs with their corresponding metadata */
     @Getter
     private final Map<UUID, DownloadTask> urls = Collections.synchronizedMap(new HashMap<>());
+
+    /** Index of the normalized urls in {@link #urls}, used to detect duplicated downloads */
+    private final Map<String, UUID> urlIndex = new ConcurrentHashMap<>();
     @Getter
     private final Map<String, Target> targets = new HashMap<>();
+
+    @DIInject
+    private MySQLInterface db;
+
+    /** Durable journal of the download queue, null if persisting the queue is disabled */
+    @Getter
+    private DownloadJournal downloadJournal;
+
+    /** Restarts failed downloads once their retry timestamp has been reached */
+    @Getter
+    private final RetryScheduler retryScheduler = new RetryScheduler(this::retryDownload);
+
+    /** Cancels downloads that made no progress for too long, created in {@link #loadConfigurations()} */
+    @Getter
+    private StallWatchdog stallWatchdog;
+
+    /** Deletes temp folders no download owns anymore, created in {@link #loadConfigurations()} */
+    @Getter
+    private TempFolderReclaimer tempFolderReclaimer;
     
     /** Setting for number of parallel downloads */
     private SettingProperty<Integer> spDownloadThreads;
@@ -74,30 +111,10 @@ public class DefaultHandler extends Handler {
     @Override
     public void initialize() {
         compressLogFiles();
-        TimerTask retryTask = new TimerTask() {
-            @Override
-            public void run() {
-                List<String> processedUrls = new ArrayList<>();
-                for (DownloadTask downloadTask : urls.values()) {
-                    if (processedUrls.contains(downloadTask.getUrl())) {
-						log.warn("Found duplicated retry schedule: {}, disabling retry.", downloadTask.getUrl());
-                        downloadTask.disableRetry();
-                        continue;
-                    }
-                    if (!downloadTask.isFailed())
-                        continue;
-                    if (downloadTask.getErrorCount() <= 0)
-                        continue;
-
-                    if (downloadTask.getRetryTimestamp() < System.currentTimeMillis()) {
-                        log.info("Rescheduling download for {}", downloadTask.getUrl());
-                        processedUrls.add(downloadTask.getUrl());
-                        downloadTask.start(spThreads.getValue());
-                    }
-                }
-            }
-        };
-        new Timer("Retry Scheduler").schedule(retryTask, 30000, 30000);
+        restoreDownloadQueue();
+        retryScheduler.start();
+        stallWatchdog.start();
+        tempFolderReclaimer.start(MediaManagerConfig.Downloader.reclaimIntervalMinutes * 60L * 1000L);
     }
 
     /**
@@ -121,8 +138,16 @@ public class DefaultHandler extends Handler {
 
         loadTargets();
 
+        if (MediaManagerConfig.Downloader.persistQueue)
+            downloadJournal = new DownloadJournal(db);
+
+        stallWatchdog = new StallWatchdog(urls::values, DownloadTelemetry.SAMPLE_INTERVAL_MILLIS * 5,
+            MediaManagerConfig.Downloader.stallCancelSeconds * 1000L);
+        tempFolderReclaimer = new TempFolderReclaimer(new File(MediaManagerConfig.Downloader.tmpDownloadFolder), this::getOwnedTempFolders,
+            MediaManagerConfig.Downloader.reclaimGraceMinutes * 60L * 1000L, MediaManagerConfig.Downloader.reclaimBytesPerSecond);
+
         DownloadTask.initialize();
-        spDownloadThreads.addSubscriber(value -> DownloadTask.getDownloadHandler().updateExecutorService(Executors.newFixedThreadPool(value)));
+        spDownloadThreads.addSubscriber(value -> DownloadTask.getDownloadHandler().setMaxConcurrency(value));
     }
     
     /**
@@ -141,6 +166,99 @@ public class DefaultHandler extends Handler {
         return spMaxRetryDelayMinutes.getValue();
     }
 
+    private void retryDownload(DownloadTask downloadTask) {
+        downloadTask.start(spThreads.getValue(), DownloadPriority.RETRY);
+    }
+
+    /**
+     * Restores the download queue from the journal.
+     * Queued and running downloads are started again, failed downloads are handed back to the retry scheduler.
+     */
+    private void restoreDownloadQueue() {
+        if (downloadJournal == null)
+            return;
+
+        int restored = 0;
+        for (DownloadJournal.Entry entry : downloadJournal.load()) {
+            try {
+                JSONObjectContainer content = (JSONObjectContainer) JSONReader.readString(entry.content());
+                String url = content.get("url", String.class);
+                if (isScheduled(url)) {
+                    log.warn("Skipping journal entry {}, the url is already scheduled: {}", entry.uuid(), url);
+                    downloadJournal.remove(entry);
+                    continue;
+                }
+
+                DownloadTask downloadTask = new DownloadTask(content);
+                addTask(downloadTask);
+                if (entry.state() == DownloadJournal.State.FAILED) {
+                    downloadTask.restoreFailedState(
+                        entry.errorCount() == null ? 0 : entry.errorCount(),
+                        entry.retryTimestamp() == null ? -1 : entry.retryTimestamp());
+                } else {
+                    downloadTask.start(spThreads.getValue());
+                }
+                restored++;
+            } catch (Exception ex) {
+                log.error("Failed to restore download {} from the journal, removing it", entry.uuid(), ex);
+                downloadJournal.remove(entry);
+            }
+        }
+        if (restored > 0)
+            log.info("Restored {} downloads from the journal", restored);
+    }
+
+    /**
+     * Stops the background services, cancels the running downloads after checkpointing them
+     * and waits until the downloads and the pending file moves are done, then closes the download logs.
+     * Everything that is still queued or running stays in the journal.
+     */
+    @Override
+    public void shutdown(long deadline) {
+        retryScheduler.stop();
+        stallWatchdog.stop();
+        tempFolderReclaimer.stop();
+        DownloadTask.shutdown();
+
+        List<DownloadTask> tasks = new ArrayList<>(urls.values());
+        tasks.forEach(DownloadTask::interruptForShutdown);
+        try {
+            if (!DownloadTask.getDownloadHandler().awaitIdle(deadline))
+                log.warn("Downloads did not stop before the shutdown deadline");
+            if (!DownloadTask.getPostProcessor().getExecutor().awaitIdle(deadline))
+                log.warn("Downloads have not been post-processed before the shutdown deadline");
+            if (!DownloadTask.getFileFinalizer().getExecutor().awaitIdle(deadline))
+                log.warn("Finished downloads have not been moved before the shutdown deadline");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (DownloadTask downloadTask : tasks) {
+            // A download that is still running keeps writing to its log
+            if (downloadTask.isRunning())
+                continue;
+            try {
+                downloadTask.closeAndCompressLog();
+            } catch (Exception ex) {
+                log.warn("Failed to close the log of {}", downloadTask.getUuid(), ex);
+            }
+        }
+    }
+
+    /**
+     * @return The temp folders of all known downloads, including the resume folders of tasks waiting for a retry
+     */
+    private Set<File> getOwnedTempFolders() {
+        Set<File> owned = new HashSet<>();
+        for (DownloadTask downloadTask : new ArrayList<>(urls.values())) {
+            if (downloadTask.getDownloadTempFolder() != null)
+                owned.add(downloadTask.getDownloadTempFolder());
+            if (MediaManagerConfig.Downloader.resumable)
+                owned.add(downloadTask.getResumeFolder());
+        }
+        return owned;
+    }
+
     /**
      * Loads and initializes download targets from the configuration.
      * Targets define the base directories where downloaded files will be stored.
@@ -188,22 +306,80 @@ public class DefaultHandler extends Handler {
         sendSettings(ctx);
     }
 
-    public void scheduleDownload(JSONObjectContainer content) {
+    /**
+     * Schedules a download, or updates the content of an existing task with the same uuid.
+     *
+     * @param content The download item
+     * @return Whether the download has been scheduled, updated or was a duplicate
+     * @throws WebResponseException if the task could not be created
+     */
+    public ScheduleResult scheduleDownload(JSONObjectContainer content) {
         String url = content.get("url", String.class);
-        if (urls.values().stream().anyMatch(dt -> dt.getUrl().equals(url))) {
+        UUID uuid = UUID.fromString(content.get("uuid", String.class));
+        String urlKey = Utils.normalizeUrl(url);
+        // Reserve the url first, so concurrent requests for the same url can not both pass the check
+        if (urlKey == null || urlIndex.putIfAbsent(urlKey, uuid) != null) {
 			log.error("Duplicated download detected: {}", url);
-            return;
+            return ScheduleResult.DUPLICATE;
         }
-        UUID uuid = UUID.fromString(content.get("uuid", String.class));
+
         DownloadTask downloadTask;
-        if (urls.containsKey(uuid)) {
-            downloadTask = urls.get(uuid);
-            downloadTask.updateContent(content);
-        } else {
-            downloadTask = new DownloadTask(content);
-            urls.put(uuid, downloadTask);
+        ScheduleResult result;
+        try {
+            if (urls.containsKey(uuid)) {
+                // The existing task keeps its url, so the reservation is not needed
+                urlIndex.remove(urlKey, uuid);
+                downloadTask = urls.get(uuid);
+                downloadTask.updateContent(content);
+                result = ScheduleResult.UPDATED;
+            } else {
+                downloadTask = new DownloadTask(content);
+                urls.put(uuid, downloadTask);
+                result = ScheduleResult.SCHEDULED;
+            }
+        } catch (RuntimeException ex) {
+            urlIndex.remove(urlKey, uuid);
+            throw ex;
         }
         downloadTask.start(spThreads.getValue());
+        return result;
+    }
+
+    /**
+     * @param url The url to check
+     * @return true if a download with the same normalized url is already known
+     */
+    public boolean isScheduled(String url) {
+        String urlKey = Utils.normalizeUrl(url);
+        return urlKey != null && urlIndex.containsKey(urlKey);
+    }
+
+    /**
+     * Moves a failed download to the url of another provider and starts it again right away.
+     *
+     * @param downloadTask The failed task
+     * @param newUrl The url of the alternative provider
+     * @return false if the url is already used by another download
+     */
+    public boolean failoverDownload(DownloadTask downloadTask, String newUrl) {
+        String urlKey = Utils.normalizeUrl(newUrl);
+        if (urlKey == null || urlIndex.putIfAbsent(urlKey, downloadTask.getUuid()) != null)
+            return false;
+        retryScheduler.cancel(downloadTask);
+        urlIndex.remove(Utils.normalizeUrl(downloadTask.getUrl()), downloadTask.getUuid());
+        downloadTask.switchUrl(newUrl);
+        downloadTask.start(spThreads.getValue(), DownloadPriority.RETRY);
+        return true;
+    }
+
+    private void addTask(DownloadTask downloadTask) {
+        urls.put(downloadTask.getUuid(), downloadTask);
+        urlIndex.put(Utils.normalizeUrl(downloadTask.getUrl()), downloadTask.getUuid());
+    }
+
+    private void removeTask(DownloadTask downloadTask) {
+        urls.remove(downloadTask.getUuid());
+        urlIndex.remove(Utils.normalizeUrl(downloadTask.getUrl()), downloadTask.getUuid());
     }
 
     /**
@@ -214,21 +390,24 @@ public class DefaultHandler extends Handler {
      * @return WebSocketResponse indicating success or failure, or null if successful
      */
     private WebSocketResponse deleteObject(DownloadTask toDelete, List<DownloadTask> removed) {
-        ExecutorTask task = toDelete.getDownloadExecutorTask();
-        if (task != null) {
-            if (task.isRunning()) {
+        DownloadExecutor.Job job = toDelete.getDownloadJob();
+        if (job != null) {
+            if (job.isRunning()) {
                 if (!toDelete.getDownloader().cancel()) {
                     return WebSocketResponse.WARN.setMessage("Failed to abort task! Downloader does not allow canceling");
                 }
             } else {
-                if (!DownloadTask.getDownloadHandler().abortTask(task) && !task.isCompleted()) {
+                if (!DownloadTask.getDownloadHandler().abort(job) && !job.isCompleted()) {
                     return WebSocketResponse.WARN.setMessage("Failed to abort task! internal error!");
                 }
             }
         }
+        retryScheduler.cancel(toDelete);
         removed.add(toDelete);
         toDelete.setDeleted(true);
         toDelete.close();
+        if (downloadJournal != null)
+            downloadJournal.remove(toDelete);
         return null;
     }
 
@@ -314,7 +493,8 @@ public class DefaultHandler extends Handler {
 
     /**
      * REST API endpoint to add new download items to the queue.
-     * Processes each item in the provided list and schedules downloads.
+     * The list is parsed as a stream and every item is scheduled as soon as it has been read,
+     * the response contains one result per item in the order of the request.
      */
     @OpenApi(
         summary = "Add new download items to the queue",
@@ -323,32 +503,94 @@ public class DefaultHandler extends Handler {
         tags = {"Downloader"},
         methods = HttpMethod.POST,
         responses = {
-            @OpenApiResponse(status = "200", description = "Downloads added successfully"),
-            @OpenApiResponse(status = "400", description = "Invalid request data"),
+            @OpenApiResponse(status = "200", description = "Downloads added, the results contain the status of every item"),
+            @OpenApiResponse(status = "400", description = "Invalid request data or every item failed"),
             @OpenApiResponse(status = "500", description = "Server error")
         }
     )
     private void addDownloadsRequest(Context ctx) {
-        try {
-            JSONObjectContainer requestData = (JSONObjectContainer) JSONReader.readString(ctx.body());
+        JSONArray results = new JSONArray();
+        Map<String, Boolean> validTargets = new HashMap<>();
+        int[] failed = {0};
+
+        // The list is parsed incrementally, every item is scheduled as soon as it has been read
+        try (Reader reader = new InputStreamReader(ctx.bodyInputStream(), StandardCharsets.UTF_8)) {
+            new JSONParser().parse(reader, new JSONArrayStreamHandler("list", data -> {
+                JSONObject result = ingestDownloadItem(results.size(), data, validTargets);
+                if ("error".equals(result.get("status")))
+                    failed[0]++;
+                results.add(result);
+            }));
+        } catch (ParseException ex) {
+            log.error("Failed to add downloads, invalid request data: {}", ex.toString());
+            ctx.status(400);
+            ctx.json(Map.of("error", "Invalid request data: " + ex, "results", results));
+            return;
+        } catch (Exception ex) {
+            log.error("Failed to add downloads via REST API", ex);
+            ctx.status(500);
+            ctx.json(Map.of("error", "Internal server error: " + ex.getMessage(), "results", results));
+            return;
+        }
+
+        if (!results.isEmpty() && failed[0] == results.size()) {
+            JSONObject first = (JSONObject) results.get(0);
+            ctx.status(400);
+            ctx.json(Map.of("error", first.get("message"), "results", results));
+            return;
+        }
 
-            for (Object data : requestData.getArrayContainer("list").getRaw()) {
-                JSONObjectContainer item = (JSONObjectContainer) JSONReader.readString(data.toString());
-                scheduleDownload(item);
+        String message = failed[0] == 0
+            ? "Downloads added successfully"
+            : "Added " + (results.size() - failed[0]) + " of " + results.size() + " downloads, " + failed[0] + " failed";
+        ctx.status(200);
+        ctx.json(Map.of("status", failed[0] == 0 ? "success" : "partial", "message", message, "results", results));
+    }
+
+    /**
+     * Validates and schedules a single item of a batch request.
+     *
+     * @param index Position of the item in the request
+     * @param data The parsed item
+     * @param validTargets Cache of the target validation results of the current batch
+     * @return Result of the item for the response
+     */
+    @SuppressWarnings("unchecked")
+    private JSONObject ingestDownloadItem(int index, Object data, Map<String, Boolean> validTargets) {
+        JSONObject result = new JSONObject();
+        result.put("index", index);
+        if (!(data instanceof JSONObject item)) {
+            result.put("status", "error");
+            result.put("message", "Item is not an object");
+            return result;
+        }
+
+        result.put("uuid", item.get("uuid"));
+        result.put("url", item.get("url"));
+        try {
+            Object target = item.get("target");
+            if (!(target instanceof String targetPath)
+                || !validTargets.computeIfAbsent(targetPath.split("/")[0], targets::containsKey)) {
+                result.put("status", "error");
+                result.put("message", "Invalid target " + target);
+                return result;
             }
 
-            // Return success response
-            ctx.status(200);
-            ctx.json(Map.of("status", "success", "message", "Downloads added successfully"));
+            JSONObjectContainer content = new JSONObjectContainer();
+            item.forEach((key, value) -> content.set((String) key, value));
+            ScheduleResult scheduleResult = scheduleDownload(content);
+            result.put("status", scheduleResult == ScheduleResult.DUPLICATE ? "duplicate" : "success");
+            result.put("message", scheduleResult.getDescription());
         } catch (WebResponseException ex) {
-			log.error("Failed to add downloads, cause: {}", ex.getMessage());
-            ctx.status(400);
-            ctx.json(Map.of("error", ex.getResponse().getMessage()));
+            log.error("Failed to add download, cause: {}", ex.getMessage());
+            result.put("status", "error");
+            result.put("message", ex.getResponse().getMessage());
         } catch (Exception ex) {
-            log.error("Failed to add downloads via REST API", ex);
-            ctx.status(500);
-            ctx.json(Map.of("error", "Internal server error: " + ex.getMessage()));
+            log.error("Failed to add download {}", item.get("url"), ex);
+            result.put("status", "error");
+            result.put("message", ex.getMessage());
         }
+        return result;
     }
 
     /**
@@ -399,7 +641,7 @@ public class DefaultHandler extends Handler {
             }
 
             deleteObjectToAll(toDelete);
-            urls.remove(uuid);
+            removeTask(item);
 
             ctx.status(200);
             ctx.json(Map.of("status", "success", "message", "Download deleted successfully"));
@@ -510,7 +752,7 @@ public class DefaultHandler extends Handler {
 
             deleteObjectToAll(toDelete);
             for (DownloadTask downloadTask : toDelete) {
-                urls.remove(downloadTask.getUuid());
+                removeTask(downloadTask);
             }
 
             Map<String, Object> responseMap = new HashMap<>();
@@ -696,4 +938,17 @@ public class DefaultHandler extends Handler {
     }
     //endregion OpenAPI
 
+    public enum ScheduleResult {
+        SCHEDULED("Download scheduled"),
+        UPDATED("Download updated"),
+        DUPLICATE("Duplicated download");
+
+        @Getter
+        private final String description;
+
+        ScheduleResult(String description) {
+            this.description = description;
+        }
+    }
+
 }
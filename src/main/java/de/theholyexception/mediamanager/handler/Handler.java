@@ -56,4 +56,13 @@ public abstract class Handler {
      */
     public void registerAPI(Javalin app) {}
 
+    /**
+     * Stops the handler when the application shuts down.
+     * Implementations stop accepting new work and persist their state, but must return before the deadline.
+     * The default implementation does nothing.
+     *
+     * @param deadline Time in milliseconds since the epoch by which the handler has to be stopped
+     */
+    public void shutdown(long deadline) {}
+
 }
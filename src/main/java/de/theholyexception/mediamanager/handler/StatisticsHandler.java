@@ -3,12 +3,27 @@ package de.theholyexception.mediamanager.handler;
 import de.theholyexception.holyapi.di.DIInject;
 import de.theholyexception.holyapi.util.GUIUtils;
 import de.theholyexception.mediamanager.MediaManager;
+import de.theholyexception.mediamanager.download.AdaptiveThreadController;
+import de.theholyexception.mediamanager.download.CpuBudget;
+import de.theholyexception.mediamanager.download.DiskSpaceGuard;
+import de.theholyexception.mediamanager.download.DownloadExecutor;
+import de.theholyexception.mediamanager.download.DownloadPriority;
+import de.theholyexception.mediamanager.download.FileFinalizer;
+import de.theholyexception.mediamanager.download.HosterLimiter;
+import de.theholyexception.mediamanager.download.PostProcessor;
+import de.theholyexception.mediamanager.download.ProviderStatistics;
+import de.theholyexception.mediamanager.download.StallWatchdog;
+import de.theholyexception.mediamanager.download.TempFolderReclaimer;
 import de.theholyexception.mediamanager.models.DownloadTask;
+import de.theholyexception.mediamanager.models.Target;
 import de.theholyexception.mediamanager.models.aniworld.AniworldHelper;
 import de.theholyexception.mediamanager.MediaManagerConfig;
+import de.theholyexception.mediamanager.util.AniworldProvider;
+import de.theholyexception.mediamanager.util.HttpClientPool;
 import de.theholyexception.mediamanager.util.ProxyHandler;
 import io.javalin.Javalin;
 import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
 import io.javalin.openapi.HttpMethod;
 import io.javalin.openapi.OpenApi;
 import io.javalin.openapi.OpenApiResponse;
@@ -17,8 +32,9 @@ import me.kaigermany.ultimateutils.StaticUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
@@ -84,6 +100,58 @@ public class StatisticsHandler extends Handler {
 	@Override
 	public void registerAPI(Javalin app) {
 		app.get("/api/system", this::getSystemInformation);
+		app.get("/api/providers", this::getProviderStatistics);
+	}
+
+	@OpenApi(
+		summary = "Gets the provider scores",
+		description = "Returns the score, success rate, mean throughput, time to first byte and failure causes of every provider over a short and a long time window",
+		operationId = "getProviderStatistics",
+		path = "/api/providers",
+		tags = {"Statistics"},
+		methods = HttpMethod.GET,
+		responses = {
+			@OpenApiResponse(status = "200", description = "Provider statistics"),
+			@OpenApiResponse(status = "503", description = "Downloads are not initialized")
+		}
+	)
+	@SuppressWarnings("unchecked")
+	private void getProviderStatistics(Context ctx) {
+		ProviderStatistics providerStatistics = DownloadTask.getProviderStatistics();
+		if (providerStatistics == null) {
+			ctx.status(HttpStatus.SERVICE_UNAVAILABLE);
+			ctx.json(Map.of("error", "Downloads are not initialized yet"));
+			return;
+		}
+
+		Set<String> hosters = new TreeSet<>(providerStatistics.getHosters());
+		for (AniworldProvider provider : AniworldProvider.values())
+			hosters.add(provider.getDisplayName());
+		Map<String, Double> scores = providerStatistics.getScores(hosters);
+
+		JSONArray providers = new JSONArray();
+		for (String hoster : providerStatistics.rank(hosters)) {
+			JSONObject provider = new JSONObject();
+			provider.put("name", hoster);
+			provider.put("score", scores.get(hoster));
+			provider.put("shortWindow", formatProviderWindow(providerStatistics.getWindow(hoster, ProviderStatistics.SHORT_WINDOW_MILLIS)));
+			provider.put("longWindow", formatProviderWindow(providerStatistics.getWindow(hoster, ProviderStatistics.LONG_WINDOW_MILLIS)));
+			providers.add(provider);
+		}
+		ctx.json(Map.of("providers", providers));
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject formatProviderWindow(ProviderStatistics.Window window) {
+		JSONObject result = new JSONObject();
+		result.put("windowMinutes", window.getWindowMillis() / 60000);
+		result.put("attempts", window.getAttempts());
+		result.put("successes", window.getSuccesses());
+		result.put("successRate", window.getSuccessRate());
+		result.put("throughput", (long) window.getThroughput());
+		result.put("timeToFirstByteMillis", window.getTimeToFirstByte());
+		result.put("failureCauses", new JSONObject(window.getFailureCauses()));
+		return result;
 	}
 
 	@OpenApi(
@@ -132,10 +200,16 @@ public class StatisticsHandler extends Handler {
 		JSONObject torNetwork = torNetworkStatus;
 		response.put("torNetwork", torNetwork);
 
-		ThreadPoolExecutor threadPoolExecutor = ((ThreadPoolExecutor) DownloadTask.getDownloadHandler().getExecutorService());
+		DownloadExecutor downloadExecutor = DownloadTask.getDownloadHandler();
 		response.put("memory", getMemoryStatistics());
-		response.put("threadPool", getThreadPoolStatistics(threadPoolExecutor));
-		response.put("system", getDownloaderStatistics(threadPoolExecutor));
+		response.put("threadPool", getThreadPoolStatistics(downloadExecutor));
+		response.put("system", getDownloaderStatistics(downloadExecutor));
+		response.put("hosters", getHosterStatistics(downloadExecutor));
+		response.put("pipeline", getPipelineStatistics());
+		response.put("postProcessor", getPostProcessorStatistics(DownloadTask.getPostProcessor()));
+		response.put("finalizer", getFinalizerStatistics(DownloadTask.getFileFinalizer()));
+		response.put("disk", getDiskStatistics(DownloadTask.getDiskSpaceGuard()));
+		response.put("tempReclaimer", getTempReclaimerStatistics(defaultHandler.getTempFolderReclaimer()));
 		response.put("docker", getDockerStatistics());
 		response.put("version", getVersionData());
 
@@ -143,6 +217,24 @@ public class StatisticsHandler extends Handler {
 		AniworldHelper.getStatistics().forEach((k, v) -> aniworld.put(k, v.get()));
 		response.put("aniworld", aniworld);
 
+		JSONObject http = new JSONObject();
+		http.put("clients", HttpClientPool.getClientCount());
+		http.put("requests", HttpClientPool.getRequests());
+		http.put("retries", HttpClientPool.getRetries());
+		http.put("failures", HttpClientPool.getFailures());
+		http.put("received", GUIUtils.formatStorageSpace(HttpClientPool.getReceivedBytes()));
+		http.put("decoded", GUIUtils.formatStorageSpace(HttpClientPool.getDecodedBytes()));
+		response.put("http", http);
+
+		JSONObject scrapeCache = new JSONObject();
+		scrapeCache.put("validators", AniworldHelper.getValidatorCache().size());
+		AniworldHelper.getPersistentCaches().forEach((name, cache) -> {
+			scrapeCache.put(name + "Entries", cache.size());
+			scrapeCache.put(name + "Hits", cache.getHits());
+			scrapeCache.put(name + "Misses", cache.getMisses());
+		});
+		response.put("scrapeCache", scrapeCache);
+
 		// Add historical data
 		response.put("memoryHistory", convertHistoryData(memoryHistory, "timestamp", "usagePercent", "usedBytes"));
 		response.put("downloadHistory", convertHistoryData(downloadHistory, "timestamp", "total", "active", "failed", "completed"));
@@ -177,18 +269,138 @@ public class StatisticsHandler extends Handler {
 	}
 
 	@SuppressWarnings("unchecked")
-	private JSONObject getThreadPoolStatistics(ThreadPoolExecutor threadPoolExecutor) {
+	private JSONObject getThreadPoolStatistics(DownloadExecutor downloadExecutor) {
 		JSONObject result = new JSONObject();
 		result.putAll(getThreadData());
-		result.put("max", threadPoolExecutor.getMaximumPoolSize());
-		result.put("active", threadPoolExecutor.getActiveCount());
-		result.put("queued", threadPoolExecutor.getQueue().size());
-		result.put("completed", threadPoolExecutor.getCompletedTaskCount());
+		result.put("max", downloadExecutor.getMaxConcurrency());
+		result.put("active", downloadExecutor.getActiveCount());
+		result.put("queued", downloadExecutor.getQueuedCount());
+		result.put("completed", downloadExecutor.getCompletedCount());
+		result.put("virtualThreads", downloadExecutor.isVirtualThreads());
+		Map<DownloadPriority, Integer> queuedByPriority = downloadExecutor.getQueuedCountByPriority();
+		for (DownloadPriority priority : DownloadPriority.values())
+			result.put("queued" + priority.name(), queuedByPriority.getOrDefault(priority, 0));
+		return result;
+	}
+
+	/**
+	 * Collects the free space of the temp folder and every target after the reservations of running downloads.
+	 *
+	 * @return JSONObject with one entry per folder
+	 */
+	@SuppressWarnings("unchecked")
+	private JSONObject getDiskStatistics(DiskSpaceGuard diskSpaceGuard) {
+		Map<String, Path> folders = new LinkedHashMap<>();
+		for (Target target : defaultHandler.getTargets().values())
+			folders.put(target.identifier(), Paths.get(target.path()));
+
+		JSONObject result = new JSONObject();
+		for (DiskSpaceGuard.Headroom headroom : diskSpaceGuard.getHeadroom(folders)) {
+			JSONObject folder = new JSONObject();
+			folder.put("store", headroom.store());
+			folder.put("usable", GUIUtils.formatStorageSpace(headroom.usableBytes()));
+			folder.put("reserved", GUIUtils.formatStorageSpace(headroom.reservedBytes()));
+			folder.put("headroom", GUIUtils.formatStorageSpace(Math.max(0, headroom.headroomBytes())));
+			folder.put("headroomBytes", headroom.headroomBytes());
+			result.put(headroom.name(), folder);
+		}
+		return result;
+	}
+
+	/**
+	 * Collects the queue depth of every stage of the download pipeline.
+	 *
+	 * @return JSONObject with the running and queued jobs per stage
+	 */
+	@SuppressWarnings("unchecked")
+	private JSONObject getPipelineStatistics() {
+		Map<String, DownloadExecutor> stages = new LinkedHashMap<>();
+		stages.put("resolve", DownloadTask.getTitleResolveHandler());
+		stages.put("fetch", DownloadTask.getDownloadHandler());
+		stages.put("postProcess", DownloadTask.getPostProcessor().getExecutor());
+		stages.put("move", DownloadTask.getFileFinalizer().getExecutor());
+
+		JSONObject result = new JSONObject();
+		stages.forEach((stage, executor) -> {
+			result.put(stage + "Active", executor.getActiveCount());
+			result.put(stage + "Queued", executor.getQueuedCount());
+			result.put(stage + "Threads", executor.getMaxConcurrency());
+		});
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject getPostProcessorStatistics(PostProcessor postProcessor) {
+		JSONObject result = new JSONObject();
+		result.put("slots", postProcessor.getSlots());
+		result.put("cgroupQuota", CpuBudget.getCgroupQuota());
+		result.put("jobs", postProcessor.getJobs());
+		result.put("failedJobs", postProcessor.getFailedJobs());
+		result.put("averageWaitMillis", postProcessor.getAverageWaitMillis());
+		result.put("averageRunMillis", postProcessor.getAverageRunMillis());
+		result.put("maxRunMillis", postProcessor.getMaxRunMillis());
+		result.put("activeMux", postProcessor.getActiveMuxCount());
+		result.put("usedSlots", postProcessor.getUsedSlots());
+		result.put("waiting", postProcessor.getWaitingCount());
+		result.put("muxCount", postProcessor.getMuxCount());
+		result.put("averageMuxWaitMillis", postProcessor.getAverageMuxWaitMillis());
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject getFinalizerStatistics(FileFinalizer fileFinalizer) {
+		JSONObject result = new JSONObject();
+		result.put("active", fileFinalizer.getExecutor().getActiveCount());
+		result.put("queued", fileFinalizer.getExecutor().getQueuedCount());
+		result.put("renamed", fileFinalizer.getRenamedFiles());
+		result.put("copied", fileFinalizer.getCopiedFiles());
+		result.put("copiedBytes", GUIUtils.formatStorageSpace(fileFinalizer.getCopiedBytes()));
+		result.put("failed", fileFinalizer.getFailedFiles());
+		result.put("retried", fileFinalizer.getRetriedMoves());
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject getTempReclaimerStatistics(TempFolderReclaimer reclaimer) {
+		JSONObject result = new JSONObject();
+		result.put("scans", reclaimer.getScans());
+		result.put("lastScan", reclaimer.getLastScan() == 0 ? "never" : new Date(reclaimer.getLastScan()).toString());
+		result.put("reclaimedFolders", reclaimer.getReclaimedFolders());
+		result.put("reclaimed", GUIUtils.formatStorageSpace(reclaimer.getReclaimedBytes()));
+		result.put("reclaimedBytes", reclaimer.getReclaimedBytes());
+		return result;
+	}
+
+	/**
+	 * Collects the utilisation of every hoster that has been used so far.
+	 *
+	 * @return JSONObject with one entry per hoster, limits of 0 mean unlimited
+	 */
+	@SuppressWarnings("unchecked")
+	private JSONObject getHosterStatistics(DownloadExecutor downloadExecutor) {
+		Map<String, Integer> queuedByHoster = downloadExecutor.getQueuedCountByHoster();
+		JSONObject result = new JSONObject();
+		for (HosterLimiter.Budget budget : DownloadTask.getHosterLimiter().getBudgets()) {
+			JSONObject hoster = new JSONObject();
+			hoster.put("running", budget.getRunning());
+			hoster.put("maxConcurrent", budget.getMaxConcurrent());
+			hoster.put("queued", queuedByHoster.getOrDefault(budget.getHoster(), 0));
+			hoster.put("maxBytesPerSecond", budget.getMaxBytesPerSecond());
+			if (budget.getMaxBytesPerSecond() > 0)
+				hoster.put("availableBytes", budget.getAvailableBytes());
+			hoster.put("transferred", GUIUtils.formatStorageSpace(budget.getTransferredBytes()));
+			AdaptiveThreadController threadController = DownloadTask.getAdaptiveThreadController();
+			if (threadController.isEnabled() && threadController.getCurrentThreads(budget.getHoster()) > 0) {
+				hoster.put("threads", threadController.getCurrentThreads(budget.getHoster()));
+				hoster.put("throughput", GUIUtils.formatStorageSpace(threadController.getAverageThroughput(budget.getHoster())) + "/s");
+			}
+			result.put(budget.getHoster(), hoster);
+		}
 		return result;
 	}
 
 	@SuppressWarnings("unchecked")
-	private JSONObject getDownloaderStatistics(ThreadPoolExecutor threadPoolExecutor) {
+	private JSONObject getDownloaderStatistics(DownloadExecutor downloadExecutor) {
 		Map<UUID, DownloadTask> urls = defaultHandler.getUrls();
 
 		JSONObject result = new JSONObject();
@@ -196,7 +408,13 @@ public class StatisticsHandler extends Handler {
 		result.put("totalDownloads", urls.size());
 		result.put("activeDownloads", (int) urls.values().stream().filter(DownloadTask::isRunning).count());
 		result.put("failedDownloads", (int) urls.values().stream().filter(DownloadTask::isFailed).count());
-		result.put("completedDownloads", (int) threadPoolExecutor.getCompletedTaskCount());
+		result.put("scheduledRetries", defaultHandler.getRetryScheduler().getScheduledCount());
+		StallWatchdog stallWatchdog = defaultHandler.getStallWatchdog();
+		result.put("stalledDownloads", stallWatchdog.getStalledCount());
+		result.put("stallsDetected", stallWatchdog.getDetectedCount());
+		result.put("stallsCanceled", stallWatchdog.getCanceledCount());
+		result.put("stallCancelFailures", stallWatchdog.getCancelFailedCount());
+		result.put("completedDownloads", (int) downloadExecutor.getCompletedCount());
 		return result;
 	}
 
@@ -223,10 +441,10 @@ public class StatisticsHandler extends Handler {
 
 	private void captureStatistics() {
 		long currentTime = System.currentTimeMillis();
-		ThreadPoolExecutor threadPoolExecutor = ((ThreadPoolExecutor) DownloadTask.getDownloadHandler().getExecutorService());
+		DownloadExecutor downloadExecutor = DownloadTask.getDownloadHandler();
 		captureMemoryStatistics(currentTime);
-		captureThreadStatistics(currentTime, threadPoolExecutor);
-		captureDownloadStatistics(currentTime, threadPoolExecutor);
+		captureThreadStatistics(currentTime, downloadExecutor);
+		captureDownloadStatistics(currentTime, downloadExecutor);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -246,13 +464,13 @@ public class StatisticsHandler extends Handler {
 	}
 
 	@SuppressWarnings("unchecked")
-	private void captureThreadStatistics(long timestamp, ThreadPoolExecutor threadPoolExecutor) {
+	private void captureThreadStatistics(long timestamp, DownloadExecutor downloadExecutor) {
 		JSONObject threadPoint = new JSONObject();
 		threadPoint.put("timestamp", timestamp);
 		threadPoint.putAll(getThreadData()); // Thread states (NEW, RUNNABLE, BLOCKED, WAITING, TIMED_WAITING, TERMINATED)
-		threadPoint.put("max", threadPoolExecutor.getMaximumPoolSize());
-		threadPoint.put("active", threadPoolExecutor.getActiveCount());
-		threadPoint.put("queued", threadPoolExecutor.getQueue().size());
+		threadPoint.put("max", downloadExecutor.getMaxConcurrency());
+		threadPoint.put("active", downloadExecutor.getActiveCount());
+		threadPoint.put("queued", downloadExecutor.getQueuedCount());
 		// Explicitly exclude completed counter from history
 		threadHistory.offer(threadPoint);
 		if (threadHistory.size() > MAX_HISTORY_SIZE) {
@@ -260,14 +478,14 @@ public class StatisticsHandler extends Handler {
 		}
 	}
 
-	private void captureDownloadStatistics(long timestamp, ThreadPoolExecutor threadPoolExecutor) {
+	private void captureDownloadStatistics(long timestamp, DownloadExecutor downloadExecutor) {
 		Map<UUID, DownloadTask> urls = defaultHandler.getUrls();
 		JSONObject downloadPoint = new JSONObject();
 		downloadPoint.put("timestamp", timestamp);
 		downloadPoint.put("total", urls.size());
 		downloadPoint.put("active", (int) urls.values().stream().filter(DownloadTask::isRunning).count());
 		downloadPoint.put("failed", (int) urls.values().stream().filter(DownloadTask::isFailed).count());
-		downloadPoint.put("completed", (int) threadPoolExecutor.getCompletedTaskCount());
+		downloadPoint.put("completed", (int) downloadExecutor.getCompletedCount());
 		downloadHistory.offer(downloadPoint);
 		if (downloadHistory.size() > MAX_HISTORY_SIZE) {
 			downloadHistory.poll();
@@ -1,10 +1,21 @@
 package de.theholyexception.mediamanager.models;
 
 import de.theholyexception.holyapi.datastorage.json.JSONObjectContainer;
-import de.theholyexception.holyapi.util.ExecutorHandler;
-import de.theholyexception.holyapi.util.ExecutorTask;
+import de.theholyexception.holyapi.util.GUIUtils;
 import de.theholyexception.mediamanager.MediaManager;
 import de.theholyexception.mediamanager.MediaManagerConfig;
+import de.theholyexception.mediamanager.download.AdaptiveThreadController;
+import de.theholyexception.mediamanager.download.DiskSpaceGuard;
+import de.theholyexception.mediamanager.download.DownloadExecutor;
+import de.theholyexception.mediamanager.download.DownloadJournal;
+import de.theholyexception.mediamanager.download.DownloadPriority;
+import de.theholyexception.mediamanager.download.DownloadTelemetry;
+import de.theholyexception.mediamanager.download.FileFinalizer;
+import de.theholyexception.mediamanager.download.HosterLimiter;
+import de.theholyexception.mediamanager.download.PostProcessor;
+import de.theholyexception.mediamanager.download.ProviderStatistics;
+import de.theholyexception.mediamanager.download.ResumeManifest;
+import de.theholyexception.mediamanager.download.StallWatchdog;
 import de.theholyexception.mediamanager.handler.AutoLoaderHandler;
 import de.theholyexception.mediamanager.handler.DefaultHandler;
 import de.theholyexception.mediamanager.logging.DownloadLogger;
@@ -12,6 +23,7 @@ import de.theholyexception.mediamanager.logging.DownloadLoggerFactory;
 import de.theholyexception.mediamanager.logging.LoggerCallback;
 import de.theholyexception.mediamanager.models.aniworld.Anime;
 import de.theholyexception.mediamanager.models.aniworld.AniworldHelper;
+import de.theholyexception.mediamanager.util.AniworldProvider;
 import de.theholyexception.mediamanager.util.*;
 import de.theholyexception.mediamanager.util.WebSocketResponse;
 import de.theholyexception.mediamanager.util.WebSocketUtils;
@@ -21,17 +33,13 @@ import lombok.extern.slf4j.Slf4j;
 import me.kaigermany.downloaders.DownloadStatusUpdateEvent;
 import me.kaigermany.downloaders.Downloader;
 import me.kaigermany.downloaders.DownloaderSelector;
-import org.jetbrains.annotations.NotNull;
 import org.json.simple.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.Proxy;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
@@ -44,16 +52,30 @@ public class DownloadTask implements Comparable<DownloadTask> {
     private static final SimpleDateFormat LOG_FILE_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
     private static final String PACKET_KEY_STATE = "state";
     private static final AtomicInteger SORT_INDEX_COUNTER = new AtomicInteger(0);
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 30000;
 
     private static DefaultHandler defaultHandler;
     private static AutoLoaderHandler autoLoaderHandler;
 
     @Getter
-    private static ExecutorHandler downloadHandler;
+    private static DownloadExecutor downloadHandler;
     @Getter
-    private static ExecutorHandler titleResolveHandler;
+    private static DownloadExecutor titleResolveHandler;
+    @Getter
+    private static HosterLimiter hosterLimiter;
+    @Getter
+    private static PostProcessor postProcessor;
+    @Getter
+    private static FileFinalizer fileFinalizer;
+    @Getter
+    private static DiskSpaceGuard diskSpaceGuard;
+    @Getter
+    private static AdaptiveThreadController adaptiveThreadController;
+    @Getter
+    private static ProviderStatistics providerStatistics;
 
     private static boolean initialized = false;
+    private static volatile boolean shuttingDown = false;
 
     private static File outputTempFolder;
 
@@ -65,10 +87,14 @@ public class DownloadTask implements Comparable<DownloadTask> {
         defaultHandler = MediaManager.getInstance().getDependencyInjector().resolve(DefaultHandler.class);
         autoLoaderHandler = MediaManager.getInstance().getDependencyInjector().resolve(AutoLoaderHandler.class);
 
-        downloadHandler = new ExecutorHandler(Executors.newFixedThreadPool(5));
-        downloadHandler.setThreadNameFactory(cnt -> "DownloadThread-" + cnt);
-        titleResolveHandler = new ExecutorHandler(Executors.newFixedThreadPool(5));
-        titleResolveHandler.setThreadNameFactory(cnt -> "TitleResolver-" + cnt);
+        boolean virtualThreads = MediaManagerConfig.Downloader.virtualThreads;
+        downloadHandler = new DownloadExecutor("DownloadThread", 5, virtualThreads);
+        titleResolveHandler = new DownloadExecutor("TitleResolver", MediaManagerConfig.Downloader.titleResolverThreads, virtualThreads);
+        downloadHandler.setAgingMillis(MediaManagerConfig.Scheduler.agingMinutes * 60L * 1000L);
+        downloadHandler.setFairnessMillis(MediaManagerConfig.Scheduler.targetFairnessMinutes * 60L * 1000L);
+        postProcessor = new PostProcessor(MediaManagerConfig.Downloader.postProcessThreads);
+        fileFinalizer = new FileFinalizer(MediaManagerConfig.Downloader.finalizerThreads, virtualThreads,
+            MediaManagerConfig.Downloader.moveRetries, MediaManagerConfig.Downloader.moveRetryDelaySeconds * 1000L);
 
         if (defaultHandler == null || autoLoaderHandler == null)
             throw new IllegalStateException("DefaultHandler or AutoLoaderHandler is not initialized");
@@ -77,6 +103,19 @@ public class DownloadTask implements Comparable<DownloadTask> {
         if (!outputTempFolder.exists() && !outputTempFolder.mkdirs())
             log.error("Failed to create tmp download folder");
 
+        hosterLimiter = new HosterLimiter();
+        downloadHandler.addAdmissionPolicy(hosterLimiter);
+        diskSpaceGuard = new DiskSpaceGuard(outputTempFolder.toPath(), group -> {
+                Target groupTarget = defaultHandler.getTargets().get(group);
+                return groupTarget == null ? null : new File(groupTarget.path()).toPath();
+            },
+            MediaManagerConfig.Downloader.minFreeSpaceMB * 1024L * 1024L,
+            MediaManagerConfig.Downloader.defaultDownloadSizeMB * 1024L * 1024L);
+        downloadHandler.addAdmissionPolicy(diskSpaceGuard);
+        adaptiveThreadController = new AdaptiveThreadController(MediaManagerConfig.AdaptiveThreads.enabled,
+            MediaManagerConfig.AdaptiveThreads.minThreads, MediaManagerConfig.AdaptiveThreads.maxThreads);
+        providerStatistics = new ProviderStatistics();
+
         if (MediaManagerConfig.Validator.enabled) {
             validatorLengthThreshold = MediaManagerConfig.Validator.videoLengthThreshold;
             String targetsCSV = MediaManagerConfig.Validator.targets;
@@ -89,11 +128,21 @@ public class DownloadTask implements Comparable<DownloadTask> {
 
         initialized = true;
     }
+    /**
+     * Stops starting downloads and title resolves, queued downloads stay in the journal and start again on the next launch.
+     */
+    public static void shutdown() {
+        shuttingDown = true;
+        downloadHandler.shutdown();
+        titleResolveHandler.shutdown();
+    }
     // endregion static-code
 
     //region properties
     @Getter
-    private final String url;
+    private String url;
+    @Getter
+    private String hoster;
     @Getter
     private final UUID uuid;
     @Getter
@@ -101,13 +150,20 @@ public class DownloadTask implements Comparable<DownloadTask> {
     private JSONObject options;
     private JSONObjectContainer autoloaderData;
     @Getter
-    private ExecutorTask downloadExecutorTask;
+    private DownloadExecutor.Job downloadJob;
+    @Getter
+    private DownloadPriority priority;
     @Getter
     private Downloader downloader;
+    @Getter
+    private File downloadTempFolder;
     @Setter
-    private boolean isDeleted = false;
+    private volatile boolean isDeleted = false;
     @Getter
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
+    /** Set when the task has been closed while a stage was still running, it is closed once the stage ends */
+    private boolean closeRequested = false;
+    private boolean closed = false;
     @Getter
     private boolean isFailed = false;
     private String lastFailedCause;
@@ -117,6 +173,8 @@ public class DownloadTask implements Comparable<DownloadTask> {
     @Setter
     @Getter
     private long downloadStartTime = 0;
+    /** Time the downloader of the current attempt has been started */
+    private long attemptStartTime = 0;
     @Setter
     @Getter 
     private double lastProgress = 0.0;
@@ -135,6 +193,23 @@ public class DownloadTask implements Comparable<DownloadTask> {
 
     private boolean hadSeverError = false;
     private boolean hadWarning = false;
+    private int usedThreads;
+    /** Cause set by the {@link StallWatchdog} when it canceled the current attempt, null otherwise */
+    private volatile String stallCause;
+    /** Set once all segments of the attempt are fetched, the downloader is muxing from then on */
+    private volatile boolean fetched;
+    /** Time the last segment of the attempt was fetched, 0 before */
+    private volatile long fetchEndTime;
+    /** true while the attempt holds a mux slot of the {@link PostProcessor} */
+    private volatile boolean holdsMuxSlot;
+    /** Manifest of the temp folder in resumable mode, null otherwise */
+    private ResumeManifest resumeManifest;
+    /** Time of the last periodic checkpoint of the running attempt */
+    private long lastCheckpointTime;
+    /** Hosters that failed for this task, a failover never goes back to them */
+    private final Set<String> failedHosters = new HashSet<>();
+    @Getter
+    private final DownloadTelemetry telemetry = new DownloadTelemetry(MediaManagerConfig.Downloader.stallTimeoutSeconds * 1000L);
     //endregion properties
 
     public DownloadTask(JSONObjectContainer content) {
@@ -145,6 +220,7 @@ public class DownloadTask implements Comparable<DownloadTask> {
         updateContent(content);
         uuid = UUID.fromString(content.get("uuid", String.class));
         url = content.get("url", String.class);
+        hoster = HosterLimiter.resolveHoster(url);
         setState(content.get(PACKET_KEY_STATE, String.class));
         lastUpdate = System.currentTimeMillis();
 
@@ -183,28 +259,77 @@ public class DownloadTask implements Comparable<DownloadTask> {
     }
 
     public void start(int threads) {
+        start(threads, autoloaderData != null ? DownloadPriority.AUTOLOADER : DownloadPriority.MANUAL);
+    }
+
+    public void start(int threads, DownloadPriority priority) {
         getDownloaderInstance();
         if (isRunning) {
             log.error("Download already running!");
             return;
         }
         retryTimestamp = 0;
-        titleResolveHandler.putTask(() -> {
+        titleResolveHandler.submit(() -> {
             if (isDeleted)
                 return;
             resolveTitle();
         });
 
-        downloadExecutorTask = new ExecutorTask(() -> download(threads));
-        downloadHandler.putTask(downloadExecutorTask);
+        this.priority = priority;
+        changeObject(this, "priority", priority.name());
+        downloadJob = downloadHandler.submit(() -> download(threads), priority, target.identifier(), hoster,
+            new DownloadExecutor.JobListener() {
+                @Override
+                public void onQueuePositionChanged(int position) {
+                    changeObject(DownloadTask.this, "queuePosition", position);
+                }
+
+                @Override
+                public void onRejected(String reason) {
+                    onDownloadRejected(reason);
+                }
+            });
         isRunning = false;
+        writeJournal(DownloadJournal.State.QUEUED);
+    }
+
+    /**
+     * Restores the failed state of a task from the download journal,
+     * the retry scheduler then starts it again once the retry timestamp has been reached.
+     *
+     * @param errorCount Number of failed attempts
+     * @param retryTimestamp Time of the next retry, -1 if the retry limit has been reached
+     */
+    public void restoreFailedState(int errorCount, long retryTimestamp) {
+        this.errorCount = errorCount;
+        this.retryTimestamp = retryTimestamp;
+        isFailed = true;
+        if (retryTimestamp > 0) {
+            changeObject(this, PACKET_KEY_STATE, "Retry scheduled for:\n" + new SimpleDateFormat("HH:mm:ss").format(new Date(retryTimestamp)));
+            defaultHandler.getRetryScheduler().schedule(this);
+        } else
+            changeObject(this, PACKET_KEY_STATE, "Error: Download failed, automatic retry limit reached!");
     }
 
     private void getDownloaderInstance() {
-        File downloadTempFolder = new File(outputTempFolder, UUID.randomUUID().toString());
-        if (!downloadTempFolder.mkdirs() || !downloadTempFolder.exists()) {
-            outputLog.write(Level.SEVERE, "Failed to create temp folder, aborting download!");
-            throw new IllegalStateException("Failed to create temp folder, aborting download!");
+        if (MediaManagerConfig.Downloader.resumable) {
+            try {
+                resumeManifest = ResumeManifest.open(outputTempFolder, uuid, url);
+            } catch (IOException ex) {
+                outputLog.write(Level.SEVERE, "Failed to create temp folder, aborting download! " + ex.getMessage());
+                throw new IllegalStateException("Failed to create temp folder, aborting download!", ex);
+            }
+            downloadTempFolder = resumeManifest.getFolder();
+            options.put("enableSessionRecovery", "true");
+            if (resumeManifest.getSegmentCount() > 0)
+                outputLog.write(Level.INFO, "Resuming attempt " + resumeManifest.getAttempts() + " from " + resumeManifest.getSegmentCount()
+                    + " segments (" + GUIUtils.formatStorageSpace(resumeManifest.getSegmentBytes()) + ")");
+        } else {
+            downloadTempFolder = new File(outputTempFolder, UUID.randomUUID().toString());
+            if (!downloadTempFolder.mkdirs() || !downloadTempFolder.exists()) {
+                outputLog.write(Level.SEVERE, "Failed to create temp folder, aborting download!");
+                throw new IllegalStateException("Failed to create temp folder, aborting download!");
+            }
         }
         downloader = DownloaderSelector.selectDownloader(url, downloadTempFolder,
             downloadStatusUpdateEvent, options);
@@ -224,7 +349,8 @@ public class DownloadTask implements Comparable<DownloadTask> {
         if (isRunning) {
             throw new IllegalStateException("Task is already running");
         }
-        downloader.setNumThreads(threads);
+        usedThreads = adaptiveThreadController.getThreads(hoster, threads);
+        downloader.setNumThreads(usedThreads);
         reset();
 
         Proxy proxy = ProxyHandler.getNextProxy();
@@ -238,7 +364,7 @@ public class DownloadTask implements Comparable<DownloadTask> {
             isFailed = true;
             lastFailedCause = "NO_OUTPUT_FOLDER";
             changeObject(this, PACKET_KEY_STATE, "Error: Failed to resolve output folder");
-            onDownloadFailed();
+            onDownloadFailed(false);
             return;
         }
 
@@ -248,82 +374,307 @@ public class DownloadTask implements Comparable<DownloadTask> {
         }
 
         isRunning = true;
-
-        outputLog.write(Level.INFO, "Download is started");
-        File outputFile;
+        writeJournal(DownloadJournal.State.RUNNING);
+
+        outputLog.write(Level.INFO, "Download is started with " + usedThreads + " threads");
+        attemptStartTime = System.currentTimeMillis();
+        DownloadExecutor.Job job = DownloadExecutor.currentJob();
+        diskSpaceGuard.trackWrittenBytes(job, telemetry::getBytesDone);
+        long resumedBytes = Utils.getFolderSize(downloadTempFolder);
+        File outputFile = null;
+        Exception startException = null;
         try {
             outputFile = downloader.start();
         } catch (Exception ex) {
+            startException = ex;
+        }
+        if (holdsMuxSlot) {
+            holdsMuxSlot = false;
+            postProcessor.releaseMuxSlot();
+        }
+
+        // Debit everything the downloader has written in this attempt, including failed and canceled attempts
+        hosterLimiter.consume(hoster, Math.max(0, Utils.getFolderSize(downloadTempFolder) - resumedBytes));
+        if (resumeManifest != null)
+            resumeManifest.checkpoint(lastProgress);
+
+        if (shuttingDown && (startException != null || downloader.isCanceled())) {
+            // The journal still has the task as running, it continues from the checkpoint on the next launch
+            outputLog.write(Level.INFO, "Download has been interrupted by the shutdown");
+            isRunning = false;
+            return;
+        }
+
+        if (startException != null) {
+            Exception ex = startException;
             isFailed = true;
-            lastFailedCause = Utils.getStackTraceAsString(ex);
+            lastFailedCause = stallCause != null ? stallCause : Utils.getStackTraceAsString(ex);
             outputLog.write(Level.SEVERE, ex.getMessage());
-            onDownloadFailed();
+            adaptiveThreadController.onFailed(hoster, usedThreads);
+            onDownloadFailed(true);
+            return;
+        }
+
+        if (stallCause != null) {
+            isFailed = true;
+            lastFailedCause = stallCause;
+            adaptiveThreadController.onFailed(hoster, usedThreads);
+            onDownloadFailed(true);
             return;
         }
 
         if (downloader.isCanceled()) {
             outputLog.write(Level.INFO, "Download is canceled");
-            isRunning = false;
+            endStage();
             return;
         }
 
         if (isFailed) {
-            onDownloadFailed();
+            adaptiveThreadController.onFailed(hoster, usedThreads);
+            onDownloadFailed(true);
             return;
         }
 
-        if (!validate(outputFile))
+        if (downloadStartTime > 0) {
+            // Measured up to the last segment, the wait for a mux slot and the ffmpeg run say nothing about the hoster
+            long millis = (fetchEndTime > 0 ? fetchEndTime : System.currentTimeMillis()) - downloadStartTime;
+            adaptiveThreadController.onCompleted(hoster, usedThreads, outputFile.length(), millis);
+            providerStatistics.recordSuccess(hoster, outputFile.length(), millis, getTimeToFirstByte());
+        }
+
+        diskSpaceGuard.recordSize(target.identifier(), outputFile.length());
+        // The copy to the target store happens after the fetch slot is released, its space stays reserved until then
+        diskSpaceGuard.holdForMove(job, outputFile.length());
+
+        // The fetch slot is released here, validation and the move run in their own stages
+        setState("Post-processing");
+        File fetchedFile = outputFile;
+        postProcessor.submit(() -> postProcess(outputFolder, fetchedFile, job));
+    }
+
+    /**
+     * Post-processing stage, validates the fetched file before it is handed to the move stage.
+     *
+     * @param job Job of the download, its disk space reservation is released once the file is moved
+     */
+    private void postProcess(File outputFolder, File outputFile, DownloadExecutor.Job job) {
+        if (isDeleted || !validate(outputFile)) {
+            diskSpaceGuard.release(job);
+            endStage();
             return;
+        }
+        onDownloadCompleted(outputFolder, outputFile, job);
+    }
 
-        onDownloadCompleted(outputFolder, outputFile);
+    /**
+     * Ends the stage the task is running in, a close requested in the meantime is carried out now.
+     */
+    private void endStage() {
+        synchronized (this) {
+            isRunning = false;
+            if (!closeRequested)
+                return;
+        }
+        close();
+    }
+
+    /**
+     * Called when the download executor refused to start the download, a retry would be refused as well.
+     */
+    private void onDownloadRejected(String reason) {
+        outputLog.write(Level.SEVERE, "Download has been rejected: " + reason);
+        isFailed = true;
+        lastFailedCause = reason;
+        retryTimestamp = -1;
+        changeObject(this, PACKET_KEY_STATE, "Error: " + reason);
+        writeJournal(DownloadJournal.State.FAILED);
     }
 
     public void disableRetry() {
         retryTimestamp = -1;
         errorCount = Integer.MAX_VALUE;
         changeObject(this, PACKET_KEY_STATE, "Error: retry disabled");
+        writeJournal(DownloadJournal.State.FAILED);
     }
 
     private void reset() {
         isFailed = false;
         isRunning = false;
         isDeleted = false;
+        downloadStartTime = 0;
+        attemptStartTime = 0;
+        stallCause = null;
+        fetched = false;
+        fetchEndTime = 0;
+        lastCheckpointTime = System.currentTimeMillis();
+        telemetry.reset(System.currentTimeMillis());
         hadSeverError = false;
         hadWarning = false;
     }
 
-    private void onDownloadFailed() {
+    /**
+     * @param providerFailure true if the hoster caused the failure, only those count for the provider statistics and the failover
+     */
+    private void onDownloadFailed(boolean providerFailure) {
         outputLog.write(Level.WARNING, "Download has failed, last cause:");
         outputLog.write(Level.WARNING, lastFailedCause);
         errorCount ++;
+        if (providerFailure) {
+            providerStatistics.recordFailure(hoster, lastFailedCause, getTimeToFirstByte());
+            if (shouldFailover()) {
+                isRunning = false;
+                changeObject(this, PACKET_KEY_STATE, "Searching alternative provider");
+                writeJournal(DownloadJournal.State.FAILED);
+                titleResolveHandler.submit(() -> {
+                    if (!isDeleted && !failover())
+                        scheduleRetry();
+                });
+                return;
+            }
+        }
+        scheduleRetry();
+    }
+
+    private void scheduleRetry() {
         long delay = calculateRetryDelay();
         long maxDelayMs = getMaxRetryDelayMs();
 
         if (delay < maxDelayMs) {
             retryTimestamp = System.currentTimeMillis() + delay;
             changeObject(this, PACKET_KEY_STATE, "Retry scheduled for:\n" + new SimpleDateFormat("HH:mm:ss").format(new Date(retryTimestamp)));
+            defaultHandler.getRetryScheduler().schedule(this);
         } else {
             retryTimestamp = -1;
             errorCount = 0;
             changeObject(this, PACKET_KEY_STATE, "Error: Download failed, automatic retry limit reached!");
         }
         isRunning = false;
+        writeJournal(DownloadJournal.State.FAILED);
         outputLog.write(Level.WARNING, "Download failed for " + this);
         log.warn("Download failed for {}", this);
     }
 
-    private void onDownloadCompleted(File outputFolder, File outputFile) {
-        setState("Completed");
+    /**
+     * @return Time between the start of the attempt and its first progress update, -1 if there was no progress
+     */
+    private long getTimeToFirstByte() {
+        return downloadStartTime > 0 && attemptStartTime > 0 ? downloadStartTime - attemptStartTime : -1;
+    }
+
+    /**
+     * Autoloader downloads fail over to another provider after {@link MediaManagerConfig.Failover#afterErrors} failures,
+     * or right away if the failure cause matches one of the configured error patterns.
+     */
+    private boolean shouldFailover() {
+        if (!MediaManagerConfig.Failover.enabled || autoloaderData == null)
+            return false;
+        if (errorCount >= MediaManagerConfig.Failover.afterErrors)
+            return true;
+        String cause = lastFailedCause == null ? "" : lastFailedCause.toLowerCase();
+        return MediaManagerConfig.Failover.errorPatterns.stream().anyMatch(cause::contains);
+    }
+
+    /**
+     * Switches the download to the best ranked alternative provider which has not failed yet and starts it again.
+     *
+     * @return true if the download has been moved to another provider
+     */
+    private boolean failover() {
+        Map<AniworldProvider, String> alternatives;
+        try {
+            alternatives = autoLoaderHandler.getAlternativeProviders(autoloaderData);
+        } catch (Exception ex) {
+            outputLog.write(Level.WARNING, "Failed to resolve alternative providers: " + ex.getMessage());
+            return false;
+        }
+
+        Map<String, String> candidates = new HashMap<>();
+        synchronized (failedHosters) {
+            failedHosters.add(hoster);
+            for (String alternativeUrl : alternatives.values()) {
+                String alternativeHoster = HosterLimiter.resolveHoster(alternativeUrl);
+                if (!failedHosters.contains(alternativeHoster))
+                    candidates.put(alternativeHoster, alternativeUrl);
+            }
+        }
+
+        for (String candidate : providerStatistics.rank(candidates.keySet())) {
+            String previousHoster = hoster;
+            if (defaultHandler.failoverDownload(this, candidates.get(candidate))) {
+                log.info("Download {} failed over from {} to {}", uuid, previousHoster, candidate);
+                return true;
+            }
+        }
+        outputLog.write(Level.WARNING, "No alternative provider left, retrying " + hoster);
+        return false;
+    }
+
+    /**
+     * Moves the task to another url, only {@link DefaultHandler} calls this after it updated its url index.
+     *
+     * @param newUrl The url of the alternative provider
+     */
+    public void switchUrl(String newUrl) {
+        outputLog.write(Level.WARNING, "Failing over from " + url + " to " + newUrl);
+        // The resume data belongs to the old url
+        if (resumeManifest != null) {
+            Utils.safeDelete(resumeManifest.getFolder());
+            resumeManifest = null;
+        }
+        url = newUrl;
+        hoster = HosterLimiter.resolveHoster(newUrl);
+        content.set("url", newUrl);
+        errorCount = 0;
+        retryTimestamp = 0;
+        changeObject(this, "url", newUrl);
+    }
+
+    /**
+     * Hands the finished file to the {@link FileFinalizer}, the download slot is released
+     * as soon as this method returns while the file is moved in the background.
+     */
+    private void onDownloadCompleted(File outputFolder, File outputFile, DownloadExecutor.Job job) {
+        // The task might have been deleted while it was validated
+        if (isDeleted) {
+            outputLog.write(Level.INFO, "Download is deleted, the file is not moved");
+            diskSpaceGuard.release(job);
+            endStage();
+            return;
+        }
+        setState("Finalizing");
         outputLog.write(Level.INFO, "Download is done");
 
         File targetFile = new File(outputFolder, outputFile.getName());
         outputLog.write(Level.INFO, "Moving file from " + outputFile.getAbsolutePath() + " to " + targetFile);
-        try {
-            Files.move(outputFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException ex) {
-            outputLog.write(Level.SEVERE, "Failed to move video file");
-        }
-        outputLog.write(Level.INFO, "File moved to target destination");
+        File tempFolder = downloadTempFolder;
+        fileFinalizer.move(outputFile.toPath(), targetFile.toPath(), (ex, delay) -> {
+            // Only the move is repeated, the downloaded file stays in the temp folder
+            outputLog.write(Level.WARNING, "Failed to move video file, retrying in " + delay / 1000 + "s: " + ex.getMessage());
+            setState("Move failed, retry at " + new SimpleDateFormat("HH:mm:ss").format(new Date(System.currentTimeMillis() + delay)));
+        }).whenComplete((path, ex) -> {
+            diskSpaceGuard.release(job);
+            if (ex != null) {
+                // Downloading again would not help, the file is kept in the temp folder for a manual move
+                outputLog.write(Level.SEVERE, "Failed to move video file, it is kept at " + outputFile.getAbsolutePath() + ": " + ex.getMessage());
+                hadSeverError = true;
+                isFailed = true;
+                lastFailedCause = Utils.getStackTraceAsString(ex);
+                retryTimestamp = -1;
+                changeObject(this, PACKET_KEY_STATE, "Error: Failed to move the file to the target");
+                writeJournal(DownloadJournal.State.FAILED);
+                endStage();
+                return;
+            }
+            outputLog.write(Level.INFO, "File moved to target destination");
+            Utils.safeDelete(tempFolder);
+            setState("Completed");
+            onDownloadFinalized();
+            endStage();
+        });
+    }
+
+    private void onDownloadFinalized() {
+        writeJournal(DownloadJournal.State.REMOVED);
         handleAutoloader();
 
         if (hadSeverError) {
@@ -340,6 +691,7 @@ public class DownloadTask implements Comparable<DownloadTask> {
             if (response != ValidatorResponse.VALID) {
                 outputLog.write(Level.WARNING, "Validation Error: " + response.getDescription());
                 setState("Validation Error: " + response.getDescription());
+                writeJournal(DownloadJournal.State.FAILED);
                 return false;
             }
         } catch (IOException ex) {
@@ -428,6 +780,14 @@ public class DownloadTask implements Comparable<DownloadTask> {
                     return;
                 if (v >= 1) {
                     setState("Completed");
+                    if (!fetched) {
+                        fetchEndTime = System.currentTimeMillis();
+                        fetched = true;
+                        // Throttles the ffmpeg run of the downloader that follows the last segment.
+                        // The download slot stays taken while waiting, a delete, cancel or shutdown ends the wait.
+                        if (!holdsMuxSlot && postProcessor.acquireMuxSlot(DownloadTask.this::isMuxWaitCanceled, DownloadTask.this::update))
+                            holdsMuxSlot = true;
+                    }
                 } else {
                     long currentTime = System.currentTimeMillis();
 
@@ -437,9 +797,10 @@ public class DownloadTask implements Comparable<DownloadTask> {
                         lastProgress = v;
                     }
 
-                    String progressText = getProgressText(v, currentTime);
-
-                    setState(progressText);
+                    if (telemetry.update(v, () -> Utils.getFolderSize(downloadTempFolder), currentTime)) {
+                        publishTelemetry();
+                        checkpointPeriodically(v, currentTime);
+                    }
                     lastProgress = v;
                 }
             }
@@ -484,44 +845,115 @@ public class DownloadTask implements Comparable<DownloadTask> {
         };
     }
 
-    @NotNull
-    private String getProgressText(double v, long currentTime) {
-        String progressText = "Downloading - " + Math.round(v * 10000.0) / 100.0 + "%";
-
-        // Calculate ETA if we have meaningful progress (>5%) and some time has passed
-        if (v > 0.05 && currentTime - downloadStartTime > 10000) { // Wait at least 10 seconds
-            long elapsedTime = currentTime - downloadStartTime;
-
-            double downloadRate = v / (elapsedTime / 1000.0); // progress per second
-            double remainingProgress = 1.0 - v;
-            long etaSeconds = Math.round(remainingProgress / downloadRate);
+    /**
+     * Sends the telemetry to the clients as structured fields, the clients format progress, speed and ETA.
+     */
+    private void publishTelemetry() {
+        changeObject(this,
+            PACKET_KEY_STATE, "Downloading",
+            "progress", telemetry.getProgress(),
+            "bytesDone", telemetry.getBytesDone(),
+            "bytesTotal", telemetry.getBytesTotal(),
+            "speed", telemetry.getSpeed(),
+            "eta", telemetry.getEtaSeconds(),
+            "stalled", telemetry.isStalled());
+        update();
+    }
 
-            if (etaSeconds > 0 && etaSeconds < 86400) { // Cap at 24 hours
-                String etaText = formatETA(etaSeconds);
-                progressText += "\n(ETA: " + etaText + ")";
-            }
+    /**
+     * Re-evaluates whether the running download is stalled and informs the clients about changes.
+     *
+     * @return true if the download is stalled
+     */
+    public boolean checkStall() {
+        // Muxing does not report any progress
+        if (!isRunning || isDeleted || fetched)
+            return false;
+        if (telemetry.checkStall(System.currentTimeMillis())) {
+            if (telemetry.isStalled())
+                outputLog.write(Level.WARNING, "Download stalled, no progress since " + telemetry.getMillisSinceProgress(System.currentTimeMillis()) / 1000 + "s");
+            changeObject(this, "stalled", telemetry.isStalled());
         }
-        return progressText;
+        return telemetry.isStalled();
     }
 
     /**
-     * Formats the estimated time remaining into a human-readable string.
+     * @return true if the attempt waiting for a mux slot no longer needs one
+     */
+    private boolean isMuxWaitCanceled() {
+        return isDeleted || shuttingDown || stallCause != null || (downloader != null && downloader.isCanceled());
+    }
+
+    /**
+     * Cancels the running attempt because it is stalled, the download thread then fails it with the given cause
+     * and schedules the retry like for any other failure.
      *
-     * @param etaSeconds The estimated time remaining in seconds
-     * @return Formatted ETA string (e.g., "2m 30s", "1h 15m", "45s")
+     * @param cause Reason recorded as the failure cause
+     * @return true if the downloader has been canceled
      */
-    private String formatETA(long etaSeconds) {
-        if (etaSeconds < 60) {
-            return etaSeconds + "s";
-        } else if (etaSeconds < 3600) {
-            long minutes = etaSeconds / 60;
-            long seconds = etaSeconds % 60;
-            return minutes + "m" + (seconds > 0 ? " " + seconds + "s" : "");
-        } else {
-            long hours = etaSeconds / 3600;
-            long minutes = (etaSeconds % 3600) / 60;
-            return hours + "h" + (minutes > 0 ? " " + minutes + "m" : "");
-        }
+    public boolean cancelStalled(String cause) {
+        if (!isRunning || isDeleted || stallCause != null)
+            return false;
+        stallCause = cause;
+        outputLog.write(Level.WARNING, cause + ", canceling the attempt");
+        return downloader.cancel();
+    }
+
+    /**
+     * @return true if the current attempt has been canceled by the {@link StallWatchdog}
+     */
+    public boolean isStallCanceled() {
+        return stallCause != null;
+    }
+
+    /**
+     * Records the segments of the running attempt in its resume manifest, so a restart can continue from them.
+     * Segments the downloader is still writing are left out.
+     */
+    public void checkpoint() {
+        ResumeManifest manifest = resumeManifest;
+        if (isRunning && manifest != null)
+            manifest.checkpoint(lastProgress, true);
+    }
+
+    /**
+     * Checkpoints the running attempt at most every {@link #CHECKPOINT_INTERVAL_MILLIS}, so a crash loses little progress.
+     */
+    private void checkpointPeriodically(double progress, long now) {
+        ResumeManifest manifest = resumeManifest;
+        if (manifest == null || now - lastCheckpointTime < CHECKPOINT_INTERVAL_MILLIS)
+            return;
+        lastCheckpointTime = now;
+        manifest.checkpoint(progress, true);
+    }
+
+    /**
+     * Cancels the running attempt because the application shuts down, its segments are checkpointed first.
+     */
+    public void interruptForShutdown() {
+        if (!isRunning || downloader == null)
+            return;
+        checkpoint();
+        if (!downloader.cancel())
+            outputLog.write(Level.WARNING, "Downloader does not allow canceling, the shutdown may cut it off");
+    }
+
+    /**
+     * @return The temp folder the download uses in resumable mode
+     */
+    public File getResumeFolder() {
+        return ResumeManifest.resolveFolder(outputTempFolder, uuid, url);
+    }
+
+    /**
+     * Writes the current state to the download journal.
+     * Deleted tasks are only written as removed, so a late state change can not bring them back.
+     */
+    private void writeJournal(DownloadJournal.State state) {
+        DownloadJournal journal = defaultHandler.getDownloadJournal();
+        if (journal == null || (isDeleted && state != DownloadJournal.State.REMOVED))
+            return;
+        journal.save(this, state);
     }
 
     private void setState(String state) {
@@ -615,11 +1047,19 @@ public class DownloadTask implements Comparable<DownloadTask> {
     }
 
 
-    public void close() {
+    /**
+     * Closes the logs of the task. A task that is still running, for example a deleted task whose file
+     * is still post-processed or moved, is closed once its current stage has ended. Closing twice does nothing.
+     */
+    public synchronized void close() {
+        if (closed)
+            return;
         if (isRunning) {
-            log.error("Cannot close download task, it is still running.");
+            log.debug("Download task is still running, it is closed once the current stage has ended");
+            closeRequested = true;
             return;
         }
+        closed = true;
         closeAndCompressLog();
         downloader = null;
     }
@@ -47,6 +47,8 @@ public class Anime {
     @Getter
     private final List<Season> seasonList = new ArrayList<>();
     private Long lastUpdate = 0L;
+    /** Season number to url of every season on the anime page, as of the last time the page changed */
+    private final Map<Integer, String> onlineSeasonUrls = new LinkedHashMap<>();
 
     @Getter
     private boolean isDirty;
@@ -295,31 +297,57 @@ public class Anime {
         seasonList.add(season);
     }
 
-    public void loadMissingEpisodes() {
-        List<Season> onlineSeasons = AniworldHelper.getSeasons(url);
-        onlineSeasons.forEach(Season::loadEpisodes);
-
-        for (Season onlineSeason : onlineSeasons) {
-            if (excludedSeasons.contains(onlineSeason.getSeasonNumber()))
-                continue;
+    /**
+     * Adds the seasons and episodes that are online but not known locally.
+     * The pages are loaded conditionally, pages that did not change since the last scan are neither parsed nor merged.
+     */
+    public synchronized void loadMissingEpisodes() {
+        try {
+            AniworldHelper.ConditionalPage seasonsPage = AniworldHelper.fetchIfChanged(url, onlineSeasonUrls.isEmpty());
+            if (seasonsPage.changed()) {
+                onlineSeasonUrls.clear();
+                for (Season onlineSeason : AniworldHelper.parseSeasons(seasonsPage.parse()))
+                    onlineSeasonUrls.put(onlineSeason.getSeasonNumber(), onlineSeason.getUrl());
+            }
+            AniworldHelper.commitPage(seasonsPage);
+        } catch (Exception ex) {
+            log.error("Failed to obtain seasons", ex);
+        }
 
-            Optional<Season> localSeason = seasonList.stream().filter(season -> season.getSeasonNumber() == onlineSeason.getSeasonNumber()).findFirst();
+        onlineSeasonUrls.forEach((seasonNumber, seasonUrl) -> {
+            if (excludedSeasons.contains(seasonNumber))
+                return;
 
-            // If the season does not exist locally, add it
-            if (localSeason.isEmpty()) {
-                addSeason(onlineSeason);
-                continue;
+            Optional<Season> localSeason = seasonList.stream().filter(season -> season.getSeasonNumber() == seasonNumber).findFirst();
+            try {
+                // A season that is not known locally is always loaded, it may have been excluded when its page was last seen
+                AniworldHelper.ConditionalPage seasonPage = AniworldHelper.fetchIfChanged(seasonUrl, localSeason.isEmpty());
+                if (seasonPage.changed())
+                    mergeSeason(seasonNumber, seasonUrl, localSeason.orElse(null), AniworldHelper.parseEpisodes(seasonPage.parse()));
+                AniworldHelper.commitPage(seasonPage);
+            } catch (Exception ex) {
+                log.error("Failed to obtain episodes", ex);
             }
+        });
 
-            // Add missing episodes
-            for (Episode onlineEpisode : onlineSeason.getEpisodeList()) {
-                Optional<Episode> localEpisode = localSeason.get().getEpisodeList().stream().filter(episode -> episode.getEpisodeNumber() == onlineEpisode.getEpisodeNumber()).findFirst();
-                if (localEpisode.isEmpty())
-                    localSeason.get().addEpisode(onlineEpisode);
-            }
+        lastUpdate = System.currentTimeMillis();
+    }
+
+    private void mergeSeason(int seasonNumber, String seasonUrl, Season localSeason, List<Episode> onlineEpisodes) {
+        // If the season does not exist locally, add it
+        if (localSeason == null) {
+            Season onlineSeason = new Season(seasonNumber, seasonUrl);
+            onlineEpisodes.forEach(onlineSeason::addEpisode);
+            addSeason(onlineSeason);
+            return;
         }
 
-        lastUpdate = System.currentTimeMillis();
+        // Add missing episodes
+        for (Episode onlineEpisode : onlineEpisodes) {
+            Optional<Episode> localEpisode = localSeason.getEpisodeList().stream().filter(episode -> episode.getEpisodeNumber() == onlineEpisode.getEpisodeNumber()).findFirst();
+            if (localEpisode.isEmpty())
+                localSeason.addEpisode(onlineEpisode);
+        }
     }
 
     /**
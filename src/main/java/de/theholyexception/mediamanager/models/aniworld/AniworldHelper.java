@@ -3,22 +3,43 @@ package de.theholyexception.mediamanager.models.aniworld;
 import de.theholyexception.holyapi.util.ExecutorHandler;
 import de.theholyexception.holyapi.util.ExecutorTask;
 import de.theholyexception.holyapi.util.expiringmap.ExpiringMap;
+import de.theholyexception.mediamanager.MediaManagerConfig;
+import de.theholyexception.mediamanager.download.ProviderStatistics;
+import de.theholyexception.mediamanager.models.DownloadTask;
 import de.theholyexception.mediamanager.util.AniworldProvider;
+import de.theholyexception.mediamanager.util.HttpClientPool;
+import de.theholyexception.mediamanager.util.PersistentCache;
 import de.theholyexception.mediamanager.util.ProxyHandler;
+import de.theholyexception.mediamanager.util.ValidatorCache;
 import de.theholyexception.mediamanager.util.Utils;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.jsoup.Connection;
-import org.jsoup.Jsoup;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.jsoup.HttpStatusException;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import javax.validation.constraints.Null;
+import java.io.File;
+import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URI;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -30,7 +51,27 @@ public class AniworldHelper {
     @Getter
     private static final Map<String, AtomicInteger> statistics = Collections.synchronizedMap(new HashMap<>());
 
-    public static final ExecutorHandler urlResolver = new ExecutorHandler(Executors.newFixedThreadPool(1));
+    private static final ThreadPoolExecutor urlResolverPool = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    public static final ExecutorHandler urlResolver = new ExecutorHandler(urlResolverPool);
+
+    /**
+     * Resizes the url resolver in place. Queued resolves are kept, surplus threads end after their current task.
+     *
+     * @param threads Number of resolver threads
+     */
+    public static synchronized void setUrlResolverThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("The url resolver needs at least one thread");
+        // The core size must never exceed the maximum size, so the order depends on the direction
+        if (threads > urlResolverPool.getMaximumPoolSize()) {
+            urlResolverPool.setMaximumPoolSize(threads);
+            urlResolverPool.setCorePoolSize(threads);
+        } else {
+            urlResolverPool.setCorePoolSize(threads);
+            urlResolverPool.setMaximumPoolSize(threads);
+        }
+        log.debug("Changed url resolver threads to {}", threads);
+    }
 
     public static final String ANIWORLD_URL = "https://aniworld.to";
 
@@ -46,31 +87,35 @@ public class AniworldHelper {
      */
     public static List<Season> getSeasons(String url) {
         statistics.computeIfAbsent("Multi-Season Requests", k -> new AtomicInteger(0)).incrementAndGet();
-        List<Season> result = new ArrayList<>();
         try {
-            Connection con = Jsoup.connect(url);
-            if (ProxyHandler.hasProxies()) con.proxy(ProxyHandler.getNextProxy());
-            Document document = con.get();
-            Element streamDiv = document.selectFirst("#stream");
-            Elements listElements = streamDiv.select("ul > li");
-            for (Element listElement : listElements) {
-                if (!listElement.html().contains("href")) continue;
-                if (listElement.html().contains("Episode")) break;
-                Element domSeason = listElement.selectFirst("a");
-                result.add(new Season(domSeason));
-            }
+            return parseSeasons(HttpClientPool.fetchDocument(url));
         } catch (Exception ex) {
             log.error("Failed to obtain seasons", ex);
         }
+        return new ArrayList<>();
+    }
+
+    /**
+     * @param document The root page of an anime
+     * @return List of all Seasons on the page
+     */
+    public static List<Season> parseSeasons(Document document) {
+        List<Season> result = new ArrayList<>();
+        Element streamDiv = document.selectFirst("#stream");
+        Elements listElements = streamDiv.select("ul > li");
+        for (Element listElement : listElements) {
+            if (!listElement.html().contains("href")) continue;
+            if (listElement.html().contains("Episode")) break;
+            Element domSeason = listElement.selectFirst("a");
+            result.add(new Season(domSeason));
+        }
         return result;
     }
 
     public static Season getSeason(String url, int number) {
         statistics.computeIfAbsent("Season Requests", k -> new AtomicInteger(0)).incrementAndGet();
         try {
-            Connection con = Jsoup.connect(url);
-            if (ProxyHandler.hasProxies()) con.proxy(ProxyHandler.getNextProxy());
-            Document document = con.get();
+            Document document = HttpClientPool.fetchDocument(url);
             Element streamDiv = document.selectFirst("#stream");
             Elements listElements = streamDiv.select("ul > li");
             for (Element listElement : listElements) {
@@ -98,30 +143,82 @@ public class AniworldHelper {
      */
     public static List<Episode> getEpisodes(String url) {
         statistics.computeIfAbsent("Episode Requests", k -> new AtomicInteger(0)).incrementAndGet();
-        List<Episode> result = new ArrayList<>();
         try {
-            Connection con = Jsoup.connect(url);
-            if (ProxyHandler.hasProxies()) con.proxy(ProxyHandler.getNextProxy());
-            Document document = con.get();
-            Element streamDiv = document.selectFirst("#stream");
-            Elements listElements = streamDiv.select("ul > li");
-            for (Element listElement : listElements) {
-                if (!listElement.html().contains("data-season-id")) continue;
-                Element domEpisode = listElement.selectFirst("a");
-                result.add(new Episode(domEpisode));
-            }
+            return parseEpisodes(HttpClientPool.fetchDocument(url));
         } catch (Exception ex) {
             log.error("Failed to obtain episodes", ex);
         }
+        return new ArrayList<>();
+    }
+
+    /**
+     * @param document The page of a season
+     * @return List of all Episodes on the page
+     */
+    public static List<Episode> parseEpisodes(Document document) {
+        List<Episode> result = new ArrayList<>();
+        Element streamDiv = document.selectFirst("#stream");
+        Elements listElements = streamDiv.select("ul > li");
+        for (Element listElement : listElements) {
+            if (!listElement.html().contains("data-season-id")) continue;
+            Element domEpisode = listElement.selectFirst("a");
+            result.add(new Episode(domEpisode));
+        }
         return result;
     }
 
+    @Getter
+    private static final ValidatorCache validatorCache = new ValidatorCache(10000);
+
+    /**
+     * Loads a page conditionally, with the validators of its last commit.
+     *
+     * @param url Url of the page
+     * @param force true to ignore the validators, the page then always counts as changed
+     * @return The page, check {@link ConditionalPage#changed()} before parsing it
+     * @throws IOException if the page could not be loaded or the server answered with an error
+     */
+    public static ConditionalPage fetchIfChanged(String url, boolean force) throws IOException {
+        statistics.computeIfAbsent("Conditional Requests", k -> new AtomicInteger(0)).incrementAndGet();
+        HttpClientPool.Response response = HttpClientPool.fetch(url, force ? Map.of() : validatorCache.getConditionalHeaders(url));
+        if (response.status() == 304) {
+            statistics.computeIfAbsent("Not Modified Pages", k -> new AtomicInteger(0)).incrementAndGet();
+            return new ConditionalPage(url, response, null, false);
+        }
+        if (response.status() < 200 || response.status() >= 300)
+            throw new HttpStatusException("HTTP error fetching URL", response.status(), url);
+
+        String hash = ValidatorCache.hash(response.body());
+        boolean changed = force || !validatorCache.matches(url, hash);
+        statistics.computeIfAbsent(changed ? "Changed Pages" : "Unchanged Pages", k -> new AtomicInteger(0)).incrementAndGet();
+        return new ConditionalPage(url, response, hash, changed);
+    }
+
+    /**
+     * Stores the validators of a page once it has been processed, the next {@link #fetchIfChanged(String, boolean)}
+     * then reports it as unchanged until the page changes.
+     */
+    public static void commitPage(ConditionalPage page) {
+        validatorCache.commit(page.url(), page.response().header("ETag"), page.response().header("Last-Modified"), page.hash());
+    }
+
+    /**
+     * Page loaded by {@link #fetchIfChanged(String, boolean)}.
+     *
+     * @param hash Hash of the body, null if the server answered with 304
+     * @param changed false if the page is the same as at its last commit
+     */
+    public record ConditionalPage(String url, HttpClientPool.Response response, String hash, boolean changed) {
+
+        public Document parse() throws IOException {
+            return response.parse();
+        }
+    }
+
     public static @Null String getAnimeTitle(String url) {
         statistics.computeIfAbsent("Title Requests", k -> new AtomicInteger(0)).incrementAndGet();
         try {
-            Connection con = Jsoup.connect(url);
-            if (ProxyHandler.hasProxies()) con.proxy(ProxyHandler.getNextProxy());
-            Document document = con.get();
+            Document document = HttpClientPool.fetchDocument(url);
             Element seriesTitle = document.selectFirst(".series-title > h1 > span");
 
             return seriesTitle.text();
@@ -132,32 +229,184 @@ public class AniworldHelper {
     }
 
     public static String getRedirectedURL(String url) {
+        return getRedirectedURLAsync(url).join();
+    }
+
+    private static Semaphore redirectSlots;
+
+    private static synchronized Semaphore getRedirectSlots() {
+        if (redirectSlots == null)
+            redirectSlots = new Semaphore(Math.max(1, MediaManagerConfig.Http.redirectParallelism));
+        return redirectSlots;
+    }
+
+    /**
+     * Resolves the target of a redirect without following it. At most {@code http.redirectParallelism} redirects
+     * are in flight, the caller blocks until a slot is free, so a caller can start the redirects of a whole page at once.
+     *
+     * @param url Url that redirects
+     * @return Future of the redirect target, completes with null if the url does not redirect or the request failed
+     */
+    public static CompletableFuture<String> getRedirectedURLAsync(String url) {
         statistics.computeIfAbsent("Redirect Requests", k -> new AtomicInteger(0)).incrementAndGet();
+        Semaphore slots = getRedirectSlots();
         try {
-            HttpURLConnection con;
-            if (ProxyHandler.hasProxies()) {
-                con = (HttpURLConnection) new URL(url).openConnection(ProxyHandler.getNextProxy());
-            } else {
-                con = (HttpURLConnection) new URL(url).openConnection();
-            }
-            con.setInstanceFollowRedirects(false); // Disable automatic redirect following
+            slots.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture(null);
+        }
 
-            int responseCode = con.getResponseCode();
+        Proxy proxy = ProxyHandler.getNextProxy();
+        HttpClient client = HttpClientPool.getClient(proxy, false);
+        CompletableFuture<String> future;
+        if (client == null) {
+            future = CompletableFuture.supplyAsync(() -> getRedirectedURL(url, proxy), HttpClientPool.getExecutor());
+        } else {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(url)).timeout(HttpClientPool.getRequestTimeout()).GET().build();
+            future = client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .thenApply(response -> isRedirect(response.statusCode()) ? response.headers().firstValue("Location").orElse(null) : null)
+                .exceptionally(ex -> {
+                    log.error("Failed to follow redirect url", ex);
+                    return null;
+                });
+        }
+        return future.whenComplete((result, ex) -> slots.release());
+    }
 
-            // Look for redirect response codes
-            if (responseCode == HttpURLConnection.HTTP_MOVED_TEMP ||
-                    responseCode == HttpURLConnection.HTTP_MOVED_PERM) {
+    /**
+     * Resolves a redirect over a plain connection, used for proxies the shared clients do not support.
+     */
+    private static String getRedirectedURL(String url, Proxy proxy) {
+        try {
+            HttpURLConnection con = (HttpURLConnection) (proxy == null ? new URL(url).openConnection() : new URL(url).openConnection(proxy));
+            con.setInstanceFollowRedirects(false); // Disable automatic redirect following
+            con.setConnectTimeout(MediaManagerConfig.Http.connectTimeoutSeconds * 1000);
+            con.setReadTimeout(MediaManagerConfig.Http.requestTimeoutSeconds * 1000);
+
+            if (isRedirect(con.getResponseCode()))
                 return con.getHeaderField("Location");
-            }
         } catch (Exception ex) {
             log.error("Failed to follow redirect url", ex);
         }
         return null;
     }
 
+    private static boolean isRedirect(int responseCode) {
+        return responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == HttpURLConnection.HTTP_MOVED_TEMP
+            || responseCode == HttpURLConnection.HTTP_SEE_OTHER || responseCode == 307 || responseCode == 308;
+    }
+
+
+    private static final Map<String, CompletableFuture<EpisodePage>> episodePageCache = Collections.synchronizedMap(new ExpiringMap<>(1000L*60L*30L, false)); // 30 min
+
+    /**
+     * Loads the snapshot of an episode page. Every page is fetched once within the cache time,
+     * concurrent callers for the same page wait for the fetch of the first one instead of loading it again.
+     *
+     * @param url Url of the episode page
+     * @return The snapshot
+     * @throws IOException if the page could not be loaded
+     */
+    public static EpisodePage getEpisodePage(String url) throws IOException {
+        CompletableFuture<EpisodePage> created = new CompletableFuture<>();
+        CompletableFuture<EpisodePage> future = episodePageCache.computeIfAbsent(url, k -> created);
+        if (future != created) {
+            statistics.computeIfAbsent("Episode Page Cache Hits", k -> new AtomicInteger(0)).incrementAndGet();
+        } else {
+            statistics.computeIfAbsent("Episode Page Requests", k -> new AtomicInteger(0)).incrementAndGet();
+            try {
+                created.complete(EpisodePage.parse(url, HttpClientPool.fetchDocument(url)));
+            } catch (Exception ex) {
+                // Failed fetches are not cached, the next caller tries again
+                episodePageCache.remove(url, created);
+                created.completeExceptionally(ex);
+            }
+        }
+
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof IOException ioException)
+                throw ioException;
+            throw new IOException("Failed to load episode page " + url, ex.getCause());
+        }
+    }
+
+    // Persistent tier behind the in-memory caches, null while it is disabled
+    private static PersistentCache languageStore;
+    private static PersistentCache videoUrlStore;
+    private static PersistentCache alternateVideoUrlStore;
+    private static ScheduledExecutorService cacheFlusher;
+
+    /**
+     * Loads the persistent scrape caches, a restart then does not have to scrape every episode again.
+     */
+    public static synchronized void initializeCaches() {
+        if (!MediaManagerConfig.Cache.enabled || languageStore != null)
+            return;
+        File folder = new File(MediaManagerConfig.Cache.directory);
+        int maxEntries = MediaManagerConfig.Cache.maxEntries;
+        languageStore = new PersistentCache(new File(folder, "episodeLanguages.json"), maxEntries);
+        videoUrlStore = new PersistentCache(new File(folder, "videoUrls.json"), maxEntries);
+        alternateVideoUrlStore = new PersistentCache(new File(folder, "alternateVideoUrls.json"), maxEntries);
+        languageStore.load();
+        videoUrlStore.load();
+        alternateVideoUrlStore.load();
+        log.info("Loaded scrape cache with {} languages, {} video urls and {} alternate video urls",
+            languageStore.size(), videoUrlStore.size(), alternateVideoUrlStore.size());
+
+        cacheFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ScrapeCacheFlusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, MediaManagerConfig.Cache.flushIntervalMinutes);
+        cacheFlusher.scheduleWithFixedDelay(AniworldHelper::saveCaches, interval, interval, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Writes the persistent scrape caches, only caches with changes are written.
+     */
+    public static synchronized void saveCaches() {
+        if (languageStore == null)
+            return;
+        languageStore.save();
+        videoUrlStore.save();
+        alternateVideoUrlStore.save();
+    }
+
+    private static long getLanguageTtlMillis() {
+        return MediaManagerConfig.Cache.languageTtlHours * 60L * 60L * 1000L;
+    }
+
+    private static long getVideoUrlTtlMillis() {
+        return MediaManagerConfig.Cache.videoUrlTtlHours * 60L * 60L * 1000L;
+    }
+
+    /**
+     * @return Statistics of the persistent scrape caches, empty while they are disabled
+     */
+    public static synchronized Map<String, PersistentCache> getPersistentCaches() {
+        Map<String, PersistentCache> result = new LinkedHashMap<>();
+        if (languageStore != null) {
+            result.put("episodeLanguages", languageStore);
+            result.put("videoUrls", videoUrlStore);
+            result.put("alternateVideoUrls", alternateVideoUrlStore);
+        }
+        return result;
+    }
 
     private static final ExpiringMap<String, List<Integer>> episodeLanguageCache = new ExpiringMap<>(1000L*60L*30L, false);
     public static ExecutorTask resolveEpisodeLanguages(Episode episode) {
+        return resolveEpisodeLanguages(episode, true);
+    }
+
+    /**
+     * @param allowStored false to skip the persistent cache, used by scans for newly released languages
+     *                    which must not be answered by an entry of the last days
+     */
+    public static ExecutorTask resolveEpisodeLanguages(Episode episode, boolean allowStored) {
         if (episode.getAniworldUrl() == null) {
             log.error("Episode has no aniworld-url " + episode.getTitle());
             return null;
@@ -167,6 +416,13 @@ public class AniworldHelper {
             episode.setLanguageIds(new ArrayList<>(episodeLanguageCache.get(episode.getAniworldUrl())));
             return null;
         }
+        String storedLanguages = languageStore == null || !allowStored ? null : languageStore.get(episode.getAniworldUrl());
+        if (storedLanguages != null) {
+            List<Integer> storedIds = Utils.stringToIntgerList(storedLanguages);
+            episodeLanguageCache.put(episode.getAniworldUrl(), storedIds);
+            episode.setLanguageIds(new ArrayList<>(storedIds));
+            return null;
+        }
         statistics.computeIfAbsent("Episode Language Requests", k -> new AtomicInteger(0)).incrementAndGet();
 
         List<Integer> ids = episode.getLanguageIdsRaw();
@@ -175,15 +431,13 @@ public class AniworldHelper {
 
         ExecutorTask task = new ExecutorTask(() -> {
             try {
-                Connection con = Jsoup.connect(episode.getAniworldUrl());
-                if (ProxyHandler.hasProxies()) con.proxy(ProxyHandler.getNextProxy());
-                Document document = con.get();
-                Elements list = document.select(".row > li");
-                for (Element element : list) {
-                    int langId = Integer.parseInt(element.attr("data-lang-key"));
+                List<Integer> pageLanguageIds = getEpisodePage(episode.getAniworldUrl()).getLanguageIds();
+                for (int langId : pageLanguageIds) {
                     if (languageIds.contains(langId)) continue;
                     languageIds.add(langId);
                 }
+                if (languageStore != null && !pageLanguageIds.isEmpty())
+                    languageStore.put(episode.getAniworldUrl(), Utils.intergerListToString(pageLanguageIds), getLanguageTtlMillis());
             } catch (Exception ex) {
                 log.error("Failed to parse episode language Id", ex);
             }
@@ -204,23 +458,39 @@ public class AniworldHelper {
                 episode.setVideoUrl(videoUrlCache.get(cacheIdentifier));
                 return;
             }
+            String storedUrl = videoUrlStore == null ? null : videoUrlStore.get(cacheIdentifier);
+            if (storedUrl != null) {
+                videoUrlCache.put(cacheIdentifier, storedUrl);
+                episode.setVideoUrl(storedUrl);
+                return;
+            }
             statistics.computeIfAbsent("Resolve Video URL Requests", k -> new AtomicInteger(0)).incrementAndGet();
 
             try {
-                Connection con = Jsoup.connect(episode.getAniworldUrl());
-                if (ProxyHandler.hasProxies()) con.proxy(ProxyHandler.getNextProxy());
-                Document document = con.get();
-                Elements list = document.select(".row > li");
-                for (Element element : list) {
-                    if (Integer.parseInt(element.attr("data-lang-key")) != languageId) continue;
-                    AniworldProvider provider = AniworldProvider.getProvider(element);
-                    if (provider == null) continue;
-                    episode.setVideoUrl(AniworldHelper.getRedirectedURL(AniworldHelper.ANIWORLD_URL+element.attr("data-link-target")));
+                EpisodePage page = getEpisodePage(episode.getAniworldUrl());
+                Map<String, EpisodePage.StreamEntry> providerStreams = new LinkedHashMap<>();
+                for (EpisodePage.StreamEntry stream : page.getStreams(languageId)) {
+                    if (stream.provider() == null) continue;
+                    providerStreams.putIfAbsent(stream.provider().getDisplayName(), stream);
+                }
+
+                // Prefer the best scored provider, the page order decides between providers without statistics
+                ProviderStatistics providerStatistics = DownloadTask.getProviderStatistics();
+                List<String> ranked = providerStatistics == null
+                    ? new ArrayList<>(providerStreams.keySet())
+                    : providerStatistics.rank(providerStreams.keySet());
+                for (String providerName : ranked) {
+                    String redirectedUrl = page.getRedirectedURL(providerStreams.get(providerName));
+                    if (redirectedUrl == null) continue;
+                    episode.setVideoUrl(redirectedUrl);
                     break;
                 }
 
-                if (episode.getVideoUrl() != null)
+                if (episode.getVideoUrl() != null) {
                     videoUrlCache.put(cacheIdentifier, episode.getVideoUrl());
+                    if (videoUrlStore != null)
+                        videoUrlStore.put(cacheIdentifier, episode.getVideoUrl(), getVideoUrlTtlMillis());
+                }
             } catch (Exception ex) {
                 log.error("Failed to load video url", ex);
             }
@@ -244,37 +514,74 @@ public class AniworldHelper {
         if (alternateVideoUrlCache.containsKey(cacheIdentifier)) {
             return alternateVideoUrlCache.get(cacheIdentifier);
         }
+        String storeKey = episode.getAniworldUrl() + "|" + languageId + "|" + (exclude == null ? "null" : exclude.name());
+        Map<AniworldProvider, String> stored = loadAlternateVideoURLs(storeKey);
+        if (stored != null) {
+            alternateVideoUrlCache.put(cacheIdentifier, stored);
+            return stored;
+        }
         statistics.computeIfAbsent("Resolve Alternate Video URL Requests", k -> new AtomicInteger(0)).incrementAndGet();
 
         try {
-            Connection con = Jsoup.connect(episode.getAniworldUrl());
-            if (ProxyHandler.hasProxies()) con.proxy(ProxyHandler.getNextProxy());
-            Document document = con.get();
-            Elements list = document.select(".row > li");
-
-            for (Element element : list) {
-                // Check if the language matches
-                if (Integer.parseInt(element.attr("data-lang-key")) != languageId) continue;
-
-                AniworldProvider provider = AniworldProvider.getProvider(element);
+            EpisodePage page = getEpisodePage(episode.getAniworldUrl());
+            List<EpisodePage.StreamEntry> candidates = new ArrayList<>();
+            for (EpisodePage.StreamEntry stream : page.getStreams(languageId)) {
+                AniworldProvider provider = stream.provider();
                 // Check if we support the provider and if we should exclude it
                 if (provider == null || provider.equals(exclude)) {
-                    log.debug("No provider found for " + element.selectFirst(".watchEpisode > i").attr("title") + " excluding " + exclude);
+                    log.debug("No provider found for " + stream.hosterName() + " excluding " + exclude);
                     log.debug(provider == null ? "No provider found" : provider.toString());
                     continue;
                 }
+                candidates.add(stream);
+            }
 
-                String url = AniworldHelper.getRedirectedURL(AniworldHelper.ANIWORLD_URL+element.attr("data-link-target"));
+            // All redirects are resolved concurrently, the loop below only reads the results
+            page.resolveRedirects(candidates);
+            for (EpisodePage.StreamEntry stream : candidates) {
+                AniworldProvider provider = stream.provider();
+                String url = page.getResolvedRedirect(stream);
                 result.put(provider, url);
 
             }
             alternateVideoUrlCache.put(cacheIdentifier, result);
+            storeAlternateVideoURLs(storeKey, result);
         } catch (Exception ex) {
             log.error("Failed to load video url", ex);
         }
         return result;
     }
 
+    private static Map<AniworldProvider, String> loadAlternateVideoURLs(String key) {
+        String stored = alternateVideoUrlStore == null ? null : alternateVideoUrlStore.get(key);
+        if (stored == null)
+            return null;
+        try {
+            Map<AniworldProvider, String> result = new HashMap<>();
+            JSONObject json = (JSONObject) new JSONParser().parse(stored);
+            for (Object entry : json.entrySet()) {
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) entry;
+                AniworldProvider provider = AniworldProvider.valueOf((String) e.getKey());
+                result.put(provider, (String) e.getValue());
+            }
+            return result;
+        } catch (Exception ex) {
+            // Written by an older version or a provider that no longer exists, load it again
+            alternateVideoUrlStore.remove(key);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void storeAlternateVideoURLs(String key, Map<AniworldProvider, String> urls) {
+        if (alternateVideoUrlStore == null || urls.isEmpty())
+            return;
+        JSONObject json = new JSONObject();
+        urls.forEach((provider, url) -> json.put(provider.name(), url));
+        // Alternate urls are read by the failover, stale hoster links must not outlive the in-memory cache
+        alternateVideoUrlStore.put(key, json.toJSONString(), MediaManagerConfig.Cache.alternateVideoUrlTtlMinutes * 60L * 1000L);
+    }
+
     private static final Pattern pattern = Pattern.compile("https:\\/\\/aniworld\\.to\\/anime\\/stream\\/([^\\/]+)");
     private static final Map<String, String> urlToSubdirectory = new HashMap<>();
     public static synchronized String getSubdirectoryFromURL(String url) {
@@ -96,7 +96,7 @@ public class Episode {
             log.debug("Episode " + a.getTitle() + " - " + title + " scans for language");
 
             ArrayList<Integer> languageIDsPrev = new ArrayList<>(languageIds == null ? new ArrayList<>() : languageIds);
-            AniworldHelper.resolveEpisodeLanguages(this);
+            AniworldHelper.resolveEpisodeLanguages(this, false);
             AniworldHelper.urlResolver.awaitGroup(883855723);
             if (languageIDsPrev.containsAll(languageIds))
                 this.isDirty = true;
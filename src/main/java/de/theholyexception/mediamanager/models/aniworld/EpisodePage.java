@@ -0,0 +1,114 @@
+package de.theholyexception.mediamanager.models.aniworld;
+
+import de.theholyexception.mediamanager.util.AniworldProvider;
+import lombok.Getter;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parsed snapshot of an episode page, holds the stream entries of every language and provider.
+ * The language, video url and alternate url resolves all read from the same snapshot, so the page is fetched once.
+ * Redirect targets are resolved on first use and kept with the snapshot.
+ */
+public class EpisodePage {
+
+    @Getter
+    private final String url;
+    @Getter
+    private final long created = System.currentTimeMillis();
+    private final List<StreamEntry> streams;
+    private final Map<String, String> redirects = new ConcurrentHashMap<>();
+
+    private EpisodePage(String url, List<StreamEntry> streams) {
+        this.url = url;
+        this.streams = streams;
+    }
+
+    /**
+     * Parses the stream list of an episode page.
+     *
+     * @param url Url of the episode page
+     * @param document The loaded page
+     */
+    public static EpisodePage parse(String url, Document document) {
+        List<StreamEntry> streams = new ArrayList<>();
+        for (Element element : document.select(".row > li")) {
+            Element icon = element.selectFirst(".watchEpisode > i");
+            streams.add(new StreamEntry(Integer.parseInt(element.attr("data-lang-key")),
+                icon == null ? null : AniworldProvider.getProvider(element),
+                icon == null ? "" : icon.attr("title"),
+                element.attr("data-link-target")));
+        }
+        return new EpisodePage(url, Collections.unmodifiableList(streams));
+    }
+
+    /**
+     * @return Language keys in page order, without duplicates
+     */
+    public List<Integer> getLanguageIds() {
+        return streams.stream().map(StreamEntry::languageId).distinct().toList();
+    }
+
+    /**
+     * @param languageId Language key
+     * @return Streams of the language in page order, including streams of unsupported providers
+     */
+    public List<StreamEntry> getStreams(int languageId) {
+        return streams.stream().filter(stream -> stream.languageId() == languageId).toList();
+    }
+
+    /**
+     * Resolves the redirect of a stream, successful redirects are kept for the lifetime of the snapshot.
+     *
+     * @return The hoster url, null if the redirect failed
+     */
+    public String getRedirectedURL(StreamEntry stream) {
+        String redirected = redirects.get(stream.linkTarget());
+        if (redirected != null)
+            return redirected;
+        // Resolved outside of the map, a slow redirect must not block the other streams of the page
+        redirected = AniworldHelper.getRedirectedURL(AniworldHelper.ANIWORLD_URL + stream.linkTarget());
+        if (redirected != null)
+            redirects.putIfAbsent(stream.linkTarget(), redirected);
+        return redirected;
+    }
+
+    /**
+     * Resolves the redirects of several streams concurrently, the results are kept for {@link #getRedirectedURL(StreamEntry)}.
+     *
+     * @param streams Streams of this page
+     */
+    public void resolveRedirects(List<StreamEntry> streams) {
+        Map<String, CompletableFuture<String>> pending = new LinkedHashMap<>();
+        for (StreamEntry stream : streams) {
+            if (redirects.containsKey(stream.linkTarget()) || pending.containsKey(stream.linkTarget()))
+                continue;
+            pending.put(stream.linkTarget(), AniworldHelper.getRedirectedURLAsync(AniworldHelper.ANIWORLD_URL + stream.linkTarget()));
+        }
+        pending.forEach((target, future) -> {
+            String redirected = future.join();
+            if (redirected != null)
+                redirects.putIfAbsent(target, redirected);
+        });
+    }
+
+    /**
+     * @return The redirect target of an already resolved stream, null if it has not been resolved or the redirect failed
+     */
+    public String getResolvedRedirect(StreamEntry stream) {
+        return redirects.get(stream.linkTarget());
+    }
+
+    /**
+     * @param languageId Language key of the stream
+     * @param provider Supported provider of the stream, null if it is not supported
+     * @param hosterName Name of the hoster as shown on the page
+     * @param linkTarget Aniworld redirect path of the stream
+     */
+    public record StreamEntry(int languageId, AniworldProvider provider, String hosterName, String linkTarget) {
+    }
+}
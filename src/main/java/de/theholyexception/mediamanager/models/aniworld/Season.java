@@ -40,8 +40,12 @@ public class Season {
 
 
     public Season(Element element) {
-        this.seasonNumber = Integer.parseInt(isNumeric(element.text()) ? element.text() : "0");
-        this.url = "https://aniworld.to" + element.attr("href");
+        this(Integer.parseInt(isNumeric(element.text()) ? element.text() : "0"), "https://aniworld.to" + element.attr("href"));
+    }
+
+    public Season(int seasonNumber, String url) {
+        this.seasonNumber = seasonNumber;
+        this.url = url;
         this.isDirty = true;
         this.id = Season.getAndAddCurrentID();
     }
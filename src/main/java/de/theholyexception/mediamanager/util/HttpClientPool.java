@@ -0,0 +1,264 @@
+package de.theholyexception.mediamanager.util;
+
+import de.theholyexception.mediamanager.MediaManagerConfig;
+import lombok.Getter;
+import org.jsoup.HttpStatusException;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Shared HTTP clients of the scrapers, one client per proxy of the {@link ProxyHandler} and one for direct connections.
+ * Every client pools its connections and speaks HTTP/2 where the server supports it, repeated requests to the same host
+ * reuse a connection instead of doing a new TCP and TLS handshake. Responses are requested compressed and decoded here.
+ * <p>
+ * The JDK client only supports HTTP proxies and would silently bypass a SOCKS proxy,
+ * so there is no client for SOCKS proxies and the callers fall back to a plain connection through the proxy.
+ */
+public class HttpClientPool {
+
+	private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/124.0 Safari/537.36";
+	private static final String ACCEPT_ENCODING = "gzip, deflate";
+	private static final long RETRY_DELAY_MILLIS = 500;
+
+	private static final Map<ClientKey, HttpClient> clients = new ConcurrentHashMap<>();
+	private static final AtomicInteger threadCounter = new AtomicInteger();
+	private static final AtomicLong requests = new AtomicLong();
+	private static final AtomicLong retries = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+	private static final AtomicLong receivedBytes = new AtomicLong();
+	private static final AtomicLong decodedBytes = new AtomicLong();
+	@Getter
+	private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "HttpClient-" + threadCounter.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Private constructor to prevent instantiation
+	 */
+	private HttpClientPool() {
+	}
+
+	/**
+	 * @param proxy Proxy to connect through, null for a direct connection
+	 * @param followRedirects true if the client follows redirects, false if it returns them
+	 * @return The shared client, null if the proxy type is not supported by the JDK client
+	 */
+	public static HttpClient getClient(Proxy proxy, boolean followRedirects) {
+		if (proxy == null)
+			proxy = Proxy.NO_PROXY;
+		if (proxy.type() == Proxy.Type.SOCKS)
+			return null;
+		return clients.computeIfAbsent(new ClientKey(proxy, followRedirects), HttpClientPool::createClient);
+	}
+
+	private static HttpClient createClient(ClientKey key) {
+		HttpClient.Builder builder = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_2)
+			.followRedirects(key.followRedirects() ? HttpClient.Redirect.NORMAL : HttpClient.Redirect.NEVER)
+			.connectTimeout(Duration.ofSeconds(MediaManagerConfig.Http.connectTimeoutSeconds))
+			.executor(executor);
+		if (key.proxy().type() == Proxy.Type.HTTP)
+			builder.proxy(ProxySelector.of((InetSocketAddress) key.proxy().address()));
+		return builder.build();
+	}
+
+	/**
+	 * @return Timeout of a single request, from sending it until the response headers are received
+	 */
+	public static Duration getRequestTimeout() {
+		return Duration.ofSeconds(MediaManagerConfig.Http.requestTimeoutSeconds);
+	}
+
+	/**
+	 * Loads a page and parses it.
+	 *
+	 * @param url Url of the page
+	 * @return The parsed page
+	 * @throws IOException if the page could not be loaded or the server answered with an error
+	 */
+	public static Document fetchDocument(String url) throws IOException {
+		Response response = fetch(url, Map.of());
+		if (response.status() < 200 || response.status() >= 300)
+			throw new HttpStatusException("HTTP error fetching URL", response.status(), url);
+		return response.parse();
+	}
+
+	/**
+	 * Sends a GET request through the next proxy of the {@link ProxyHandler}. Connection errors, 429 and 5xx responses
+	 * are retried up to {@code http.retries} times with a growing delay, every retry uses the next proxy.
+	 *
+	 * @param url Url to load
+	 * @param headers Additional request headers
+	 * @return The response with the decoded body, error responses are returned after the last retry
+	 * @throws IOException if no attempt got a response
+	 */
+	public static Response fetch(String url, Map<String, String> headers) throws IOException {
+		int maxRetries = Math.max(0, MediaManagerConfig.Http.retries);
+		IOException lastException = null;
+		for (int attempt = 0; attempt <= maxRetries; attempt++) {
+			if (attempt > 0) {
+				retries.incrementAndGet();
+				try {
+					Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting to retry " + url);
+				}
+			}
+
+			try {
+				requests.incrementAndGet();
+				Response response = send(url, headers, ProxyHandler.getNextProxy());
+				if (!isRetryable(response.status()) || attempt == maxRetries)
+					return response;
+				lastException = new HttpStatusException("HTTP error fetching URL", response.status(), url);
+			} catch (InterruptedIOException ex) {
+				throw ex;
+			} catch (IOException ex) {
+				lastException = ex;
+			}
+		}
+		failures.incrementAndGet();
+		throw lastException;
+	}
+
+	private static boolean isRetryable(int status) {
+		return status == 429 || status >= 500;
+	}
+
+	private static Response send(String url, Map<String, String> headers, Proxy proxy) throws IOException {
+		HttpClient client = getClient(proxy, true);
+		if (client == null)
+			return sendPlain(url, headers, proxy);
+
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+			.timeout(getRequestTimeout())
+			.header("User-Agent", USER_AGENT)
+			.header("Accept-Encoding", ACCEPT_ENCODING)
+			.GET();
+		headers.forEach(builder::header);
+		try {
+			HttpResponse<byte[]> response = client.send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+			byte[] body = decode(response.body(), response.headers().firstValue("Content-Encoding").orElse(null));
+			return new Response(url, response.statusCode(), response.headers().map(), body);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading " + url);
+		}
+	}
+
+	/**
+	 * Sends a request over a plain connection, used for proxies the shared clients do not support.
+	 */
+	private static Response sendPlain(String url, Map<String, String> headers, Proxy proxy) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) (proxy == null ? new URL(url).openConnection() : new URL(url).openConnection(proxy));
+		con.setConnectTimeout(MediaManagerConfig.Http.connectTimeoutSeconds * 1000);
+		con.setReadTimeout(MediaManagerConfig.Http.requestTimeoutSeconds * 1000);
+		con.setRequestProperty("User-Agent", USER_AGENT);
+		con.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+		headers.forEach(con::setRequestProperty);
+
+		int status = con.getResponseCode();
+		byte[] body;
+		try (InputStream in = status >= 400 ? con.getErrorStream() : con.getInputStream()) {
+			body = in == null ? new byte[0] : in.readAllBytes();
+		}
+		Map<String, List<String>> responseHeaders = new HashMap<>();
+		con.getHeaderFields().forEach((name, values) -> {
+			// The status line is listed with a null name
+			if (name != null)
+				responseHeaders.put(name, values);
+		});
+		return new Response(url, status, responseHeaders, decode(body, con.getContentEncoding()));
+	}
+
+	private static byte[] decode(byte[] body, String contentEncoding) throws IOException {
+		receivedBytes.addAndGet(body.length);
+		if (body.length > 0 && contentEncoding != null) {
+			String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+			if (encoding.equals("gzip")) {
+				try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+					body = in.readAllBytes();
+				}
+			} else if (encoding.equals("deflate")) {
+				try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(body))) {
+					body = in.readAllBytes();
+				}
+			}
+		}
+		decodedBytes.addAndGet(body.length);
+		return body;
+	}
+
+	public static long getRequests() {
+		return requests.get();
+	}
+
+	public static long getRetries() {
+		return retries.get();
+	}
+
+	public static long getFailures() {
+		return failures.get();
+	}
+
+	public static long getReceivedBytes() {
+		return receivedBytes.get();
+	}
+
+	public static long getDecodedBytes() {
+		return decodedBytes.get();
+	}
+
+	public static int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * Response of {@link #fetch(String, Map)} with the already decoded body.
+	 */
+	public record Response(String url, int status, Map<String, List<String>> headers, byte[] body) {
+
+		/**
+		 * @param name Header name, compared case-insensitively
+		 * @return The first value of the header, null if it is missing
+		 */
+		public String header(String name) {
+			for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+				if (entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty())
+					return entry.getValue().get(0);
+			}
+			return null;
+		}
+
+		/**
+		 * @return The body parsed as HTML, the charset is taken from the page
+		 */
+		public Document parse() throws IOException {
+			return Jsoup.parse(new ByteArrayInputStream(body), null, url);
+		}
+	}
+
+	private record ClientKey(Proxy proxy, boolean followRedirects) {
+	}
+}
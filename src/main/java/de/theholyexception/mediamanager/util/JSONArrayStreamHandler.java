@@ -0,0 +1,137 @@
+package de.theholyexception.mediamanager.util;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+
+/**
+ * Streaming handler for {@link org.json.simple.parser.JSONParser#parse(java.io.Reader, ContentHandler)}
+ * that hands out the elements of one array of the root object one by one.
+ * Only the element that is currently parsed is kept in memory, everything outside the array is skipped.
+ */
+public class JSONArrayStreamHandler implements ContentHandler {
+
+	private final String arrayKey;
+	private final Consumer<Object> elementConsumer;
+	private final Deque<Object> stack = new ArrayDeque<>();
+	private final Deque<String> keys = new ArrayDeque<>();
+	private String rootKey;
+	private int depth;
+	private boolean inArray;
+
+	/**
+	 * @param arrayKey Key of the array in the root object
+	 * @param elementConsumer Called for every element of the array as soon as it has been parsed
+	 */
+	public JSONArrayStreamHandler(String arrayKey, Consumer<Object> elementConsumer) {
+		this.arrayKey = arrayKey;
+		this.elementConsumer = elementConsumer;
+	}
+
+	@Override
+	public void startJSON() {
+		stack.clear();
+		keys.clear();
+		rootKey = null;
+		depth = 0;
+		inArray = false;
+	}
+
+	@Override
+	public void endJSON() {
+		// Nothing to do, elements are handed out as soon as they are complete
+	}
+
+	@Override
+	public boolean startObject() {
+		if (isBuilding())
+			push(new JSONObject());
+		depth++;
+		return true;
+	}
+
+	@Override
+	public boolean endObject() {
+		depth--;
+		pop();
+		return true;
+	}
+
+	@Override
+	public boolean startObjectEntry(String key) {
+		if (!stack.isEmpty())
+			keys.push(key);
+		else if (depth == 1)
+			rootKey = key;
+		return true;
+	}
+
+	@Override
+	public boolean endObjectEntry() {
+		if (!stack.isEmpty() && stack.peek() instanceof JSONObject)
+			keys.pop();
+		return true;
+	}
+
+	@Override
+	public boolean startArray() {
+		if (stack.isEmpty() && depth == 1 && arrayKey.equals(rootKey))
+			inArray = true;
+		else if (isBuilding())
+			push(new JSONArray());
+		depth++;
+		return true;
+	}
+
+	@Override
+	public boolean endArray() {
+		depth--;
+		if (!stack.isEmpty())
+			pop();
+		else if (inArray && depth == 1)
+			inArray = false;
+		return true;
+	}
+
+	@Override
+	public boolean primitive(Object value) {
+		if (!stack.isEmpty())
+			add(value);
+		else if (inArray && depth == 2)
+			elementConsumer.accept(value);
+		return true;
+	}
+
+	/**
+	 * @return true if the next value belongs to an element of the array
+	 */
+	private boolean isBuilding() {
+		return !stack.isEmpty() || (inArray && depth == 2);
+	}
+
+	private void push(Object container) {
+		add(container);
+		stack.push(container);
+	}
+
+	private void pop() {
+		if (stack.isEmpty())
+			return;
+		Object container = stack.pop();
+		if (stack.isEmpty())
+			elementConsumer.accept(container);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void add(Object value) {
+		Object parent = stack.peek();
+		if (parent instanceof JSONObject object)
+			object.put(keys.peek(), value);
+		else if (parent instanceof JSONArray array)
+			array.add(value);
+	}
+}
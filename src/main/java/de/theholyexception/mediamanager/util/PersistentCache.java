@@ -0,0 +1,144 @@
+package de.theholyexception.mediamanager.util;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * String key-value cache that is kept in a file and survives restarts. Every entry has its own expiry,
+ * once the cache is full the least recently used entries are dropped.
+ * <p>
+ * The whole cache is held in memory and written as one JSON file, first to a temporary file that then replaces the old one,
+ * so a crash while writing keeps the previous state. Writes only happen on {@link #save()} and only if something changed.
+ */
+@Slf4j
+public class PersistentCache {
+
+	@Getter
+	private final File file;
+	private final Map<String, Entry> entries;
+	private boolean dirty;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public PersistentCache(File file, int maxEntries) {
+		this.file = file;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return The value of the key, null if it is missing or expired
+	 */
+	public synchronized String get(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.expires() < System.currentTimeMillis()) {
+			entries.remove(key);
+			dirty = true;
+			entry = null;
+		}
+		(entry == null ? misses : hits).incrementAndGet();
+		return entry == null ? null : entry.value();
+	}
+
+	/**
+	 * @param ttlMillis Time until the entry expires
+	 */
+	public synchronized void put(String key, String value, long ttlMillis) {
+		entries.put(key, new Entry(value, System.currentTimeMillis() + ttlMillis));
+		dirty = true;
+	}
+
+	public synchronized void remove(String key) {
+		if (entries.remove(key) != null)
+			dirty = true;
+	}
+
+	/**
+	 * Reads the file, expired entries are skipped. A missing or broken file leaves the cache empty.
+	 */
+	public synchronized void load() {
+		if (!file.isFile())
+			return;
+		long now = System.currentTimeMillis();
+		try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			JSONObject json = (JSONObject) new JSONParser().parse(reader);
+			for (Object o : (JSONArray) json.get("entries")) {
+				JSONObject entry = (JSONObject) o;
+				long expires = ((Number) entry.get("expires")).longValue();
+				if (expires >= now)
+					entries.put((String) entry.get("key"), new Entry((String) entry.get("value"), expires));
+			}
+			log.debug("Loaded {} entries from {}", entries.size(), file.getName());
+		} catch (Exception ex) {
+			log.warn("Failed to read cache {}, starting empty", file.getName(), ex);
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Writes the cache to its file if it has changed since the last write, expired entries are dropped.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void save() {
+		if (!dirty)
+			return;
+		long now = System.currentTimeMillis();
+		entries.values().removeIf(entry -> entry.expires() < now);
+
+		JSONArray array = new JSONArray();
+		// Least recently used first, the access order is restored when the file is loaded again
+		entries.forEach((key, entry) -> {
+			JSONObject object = new JSONObject();
+			object.put("key", key);
+			object.put("value", entry.value());
+			object.put("expires", entry.expires());
+			array.add(object);
+		});
+		JSONObject json = new JSONObject();
+		json.put("entries", array);
+
+		try {
+			File folder = file.getAbsoluteFile().getParentFile();
+			if (!folder.exists() && !folder.mkdirs())
+				throw new IOException("Failed to create cache folder " + folder.getAbsolutePath());
+			File temp = new File(folder, file.getName() + ".tmp");
+			Files.writeString(temp.toPath(), json.toJSONString(), StandardCharsets.UTF_8);
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			dirty = false;
+		} catch (IOException ex) {
+			log.warn("Failed to write cache {}", file.getName(), ex);
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private record Entry(String value, long expires) {
+	}
+}
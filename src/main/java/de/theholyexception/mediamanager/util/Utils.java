@@ -3,13 +3,19 @@ package de.theholyexception.mediamanager.util;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.Set;
 
 @Slf4j
 public class Utils {
+    private static final Set<String> TRACKING_PARAMETERS = Set.of("fbclid", "gclid", "dclid", "msclkid", "mc_cid", "mc_eid", "igshid");
+
     public static void saveBytes(String filename, byte[] data) {
         try {
             File file = new File(filename);
@@ -68,6 +74,54 @@ public class Utils {
         return list;
     }
 
+    /**
+     * Normalizes an url so the same resource always results in the same string.
+     * Scheme and host are lower cased, default ports, fragments, trailing slashes
+     * and tracking parameters (utm_*, fbclid, ...) are removed.
+     * @param url The url to normalize
+     * @return The normalized url, or the trimmed input if it is not a valid absolute url
+     */
+    public static String normalizeUrl(String url) {
+        if (url == null)
+            return null;
+        String trimmed = url.trim();
+        try {
+            URI uri = new URI(trimmed);
+            if (uri.getScheme() == null || uri.getHost() == null)
+                return trimmed;
+
+            String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+            StringBuilder sb = new StringBuilder(trimmed.length());
+            sb.append(scheme).append("://").append(uri.getHost().toLowerCase(Locale.ROOT));
+            int port = uri.getPort();
+            if (port != -1 && !(port == 80 && scheme.equals("http")) && !(port == 443 && scheme.equals("https")))
+                sb.append(':').append(port);
+
+            String path = uri.getRawPath();
+            if (path != null && path.length() > 1 && path.endsWith("/"))
+                path = path.substring(0, path.length() - 1);
+            if (path != null && !path.equals("/"))
+                sb.append(path);
+
+            String query = uri.getRawQuery();
+            if (query != null) {
+                char separator = '?';
+                for (String parameter : query.split("&")) {
+                    if (parameter.isEmpty())
+                        continue;
+                    String name = parameter.split("=", 2)[0].toLowerCase(Locale.ROOT);
+                    if (name.startsWith("utm_") || TRACKING_PARAMETERS.contains(name))
+                        continue;
+                    sb.append(separator).append(parameter);
+                    separator = '&';
+                }
+            }
+            return sb.toString();
+        } catch (URISyntaxException ex) {
+            return trimmed;
+        }
+    }
+
     public static String escape(String string) {
         return string.replaceAll("[^a-zA-Z0-9-_.]", "_");
     }
@@ -92,6 +146,23 @@ public class Utils {
         if (!dir.delete()) log.warn("Failed to delete dir {}", dir.getAbsolutePath());
     }
 
+    /**
+     * Sums up the size of all files in a directory, including sub directories.
+     * @param dir The directory
+     * @return Size in bytes, 0 if the directory does not exist
+     */
+    public static long getFolderSize(File dir) {
+        if (dir == null)
+            return 0;
+        File[] files = dir.listFiles();
+        if (files == null)
+            return 0;
+        long size = 0;
+        for (File f : files)
+            size += f.isDirectory() ? getFolderSize(f) : f.length();
+        return size;
+    }
+
     public static String stackTraceToString(Throwable t) {
         StringWriter sw = new StringWriter();
         t.printStackTrace(new PrintWriter(sw));
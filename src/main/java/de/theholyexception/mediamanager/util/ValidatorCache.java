@@ -0,0 +1,92 @@
+package de.theholyexception.mediamanager.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the validators of processed pages, the ETag, the Last-Modified date and a hash of the body.
+ * They are sent as conditional request headers, so the server can answer with 304, and the hash detects
+ * an unchanged page of a server that ignores the headers without parsing it.
+ * <p>
+ * Validators are only committed once the caller has processed the page, a page that failed to process is loaded in full again.
+ * The least recently used entries are dropped once the cache is full.
+ */
+public class ValidatorCache {
+
+	private final Map<String, Entry> entries;
+
+	public ValidatorCache(int maxEntries) {
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return The If-None-Match and If-Modified-Since headers of the url, empty if the url has no validators
+	 */
+	public synchronized Map<String, String> getConditionalHeaders(String url) {
+		Map<String, String> headers = new HashMap<>();
+		Entry entry = entries.get(url);
+		if (entry == null)
+			return headers;
+		if (entry.etag() != null)
+			headers.put("If-None-Match", entry.etag());
+		if (entry.lastModified() != null)
+			headers.put("If-Modified-Since", entry.lastModified());
+		return headers;
+	}
+
+	/**
+	 * @param url Url of the page
+	 * @param hash Hash of the loaded body
+	 * @return true if the body has the same hash as the last committed one
+	 */
+	public synchronized boolean matches(String url, String hash) {
+		Entry entry = entries.get(url);
+		return entry != null && entry.hash() != null && entry.hash().equals(hash);
+	}
+
+	/**
+	 * Stores the validators of a processed page, missing values keep the ones of the previous commit.
+	 */
+	public synchronized void commit(String url, String etag, String lastModified, String hash) {
+		Entry previous = entries.get(url);
+		if (previous != null) {
+			etag = etag == null ? previous.etag() : etag;
+			lastModified = lastModified == null ? previous.lastModified() : lastModified;
+			hash = hash == null ? previous.hash() : hash;
+		}
+		entries.put(url, new Entry(etag, lastModified, hash, System.currentTimeMillis()));
+	}
+
+	public synchronized void invalidate(String url) {
+		entries.remove(url);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return Hex encoded SHA-256 of the body
+	 */
+	public static String hash(byte[] body) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+		} catch (NoSuchAlgorithmException ex) {
+			// Every JVM has to support SHA-256, fall back to the plain hash code anyway
+			return Integer.toHexString(new String(body, StandardCharsets.ISO_8859_1).hashCode());
+		}
+	}
+
+	public record Entry(String etag, String lastModified, String hash, long committed) {
+	}
+}
@@ -0,0 +1,10 @@
+create table if not exists download (
+    szUUID          varchar(36) primary key,
+    szURL           varchar(1024),
+    szContent       text,
+    szState         varchar(16),
+    nErrorCount     integer,
+    nRetryTimestamp bigint,
+    nVersion        bigint,
+    dtUpdated       timestamp default current_timestamp on update current_timestamp
+);
@@ -0,0 +1,38 @@
+CREATE OR REPLACE PROCEDURE `mediamanager`.`saveDownload`(
+	IN _szUUID varchar(36),
+	IN _szURL varchar(1024),
+	IN _szContent text,
+	IN _szState varchar(16),
+	IN _nErrorCount int,
+	IN _nRetryTimestamp bigint,
+	IN _nVersion bigint
+)
+BEGIN
+	-- Journal writes are executed asynchronously, older versions must never overwrite newer ones
+	insert ignore into download (
+		szUUID,
+		szURL,
+		szContent,
+		szState,
+		nErrorCount,
+		nRetryTimestamp,
+		nVersion
+	) values (
+		_szUUID,
+		_szURL,
+		_szContent,
+		_szState,
+		_nErrorCount,
+		_nRetryTimestamp,
+		_nVersion
+	);
+
+	update download
+	set szURL = _szURL,
+		szContent = _szContent,
+		szState = _szState,
+		nErrorCount = _nErrorCount,
+		nRetryTimestamp = _nRetryTimestamp,
+		nVersion = _nVersion
+	where szUUID = _szUUID and nVersion < _nVersion;
+END
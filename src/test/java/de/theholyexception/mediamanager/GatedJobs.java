@@ -0,0 +1,80 @@
+package de.theholyexception.mediamanager;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Jobs for executor tests that block until the test lets them finish, so the test decides when slots become free.
+ * Every job counts itself while it runs and the highest number of jobs running at the same time is recorded.
+ */
+public class GatedJobs {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final Semaphore gate = new Semaphore(0);
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    /**
+     * @return A job that runs until it is let through with {@link #finish(int)}
+     */
+    public Runnable newJob() {
+        return () -> {
+            started.incrementAndGet();
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                gate.acquireUninterruptibly();
+            } finally {
+                running.decrementAndGet();
+                completed.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Lets the given number of running or future jobs finish.
+     */
+    public void finish(int jobs) {
+        gate.release(jobs);
+    }
+
+    /**
+     * Starts a new measuring window for {@link #getMaxRunning()}, only call it while no job is starting.
+     */
+    public void resetMaxRunning() {
+        maxRunning.set(running.get());
+    }
+
+    public int getStarted() {
+        return started.get();
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    public int getMaxRunning() {
+        return maxRunning.get();
+    }
+
+    /**
+     * Waits until the condition is met.
+     *
+     * @throws AssertionError if it is not met within {@link #TIMEOUT_MILLIS}
+     */
+    public static void awaitCondition(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline)
+                throw new AssertionError("Timed out waiting: " + message);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package de.theholyexception.mediamanager.download;
+
+import de.theholyexception.mediamanager.GatedJobs;
+import org.junit.jupiter.api.Test;
+
+import static de.theholyexception.mediamanager.GatedJobs.awaitCondition;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class DownloadExecutorTest {
+
+    private static final int JOBS = 40;
+    /** Time the tests wait to make sure no further job is started */
+    private static final long SETTLE_MILLIS = 200;
+
+    @Test
+    void resizeUnderLoadOnPlatformThreads() throws InterruptedException {
+        resizeUnderLoad(false);
+    }
+
+    @Test
+    void resizeUnderLoadOnVirtualThreads() throws InterruptedException {
+        // Virtual threads need Java 21, older runtimes fall back to platform threads
+        assumeTrue(Runtime.version().feature() >= 21, "virtual threads need Java 21");
+        resizeUnderLoad(true);
+    }
+
+    /**
+     * Queues more jobs than there are slots, shrinks the executor while it is full and grows it again,
+     * every job has to complete and no more jobs may run than the limit in effect.
+     */
+    private void resizeUnderLoad(boolean virtualThreads) throws InterruptedException {
+        DownloadExecutor executor = new DownloadExecutor("Test", 4, virtualThreads);
+        assertEquals(virtualThreads, executor.isVirtualThreads());
+        GatedJobs jobs = new GatedJobs();
+        for (int i = 0; i < JOBS; i++)
+            executor.submit(jobs.newJob());
+
+        try {
+            awaitCondition(() -> jobs.getRunning() == 4, "4 running jobs");
+            Thread.sleep(SETTLE_MILLIS);
+            assertEquals(4, jobs.getStarted());
+            assertEquals(JOBS - 4, executor.getQueuedCount());
+
+            // Shrink while every slot is taken, the running jobs continue and nothing new starts until they are below the limit
+            executor.setMaxConcurrency(2);
+            jobs.finish(2);
+            awaitCondition(() -> jobs.getCompleted() == 2, "2 completed jobs");
+            Thread.sleep(SETTLE_MILLIS);
+            assertEquals(4, jobs.getStarted(), "no job may start while the executor is above its new limit");
+            assertEquals(2, jobs.getRunning());
+
+            jobs.resetMaxRunning();
+            jobs.finish(10);
+            awaitCondition(() -> jobs.getCompleted() == 12, "12 completed jobs");
+            awaitCondition(() -> jobs.getRunning() == 2, "2 running jobs");
+            assertEquals(2, jobs.getMaxRunning());
+
+            // Grow, the queued jobs take the new slots right away
+            executor.setMaxConcurrency(6);
+            awaitCondition(() -> jobs.getRunning() == 6, "6 running jobs");
+            jobs.finish(10);
+            awaitCondition(() -> jobs.getCompleted() == 22, "22 completed jobs");
+            awaitCondition(() -> jobs.getRunning() == 6, "6 running jobs");
+            assertEquals(6, jobs.getMaxRunning());
+        } finally {
+            jobs.finish(JOBS);
+        }
+        assertTrue(executor.awaitIdle(System.currentTimeMillis() + 10000), "executor did not become idle");
+        assertEquals(JOBS, jobs.getStarted());
+        assertEquals(JOBS, jobs.getCompleted());
+        assertEquals(JOBS, executor.getCompletedCount());
+        assertEquals(0, executor.getActiveCount());
+        assertEquals(0, executor.getQueuedCount());
+        executor.shutdown();
+    }
+
+    @Test
+    void currentJobIsTheRunningJob() throws InterruptedException {
+        DownloadExecutor executor = new DownloadExecutor("Test", 1, false);
+        DownloadExecutor.Job[] seen = new DownloadExecutor.Job[1];
+        DownloadExecutor.Job job = executor.submit(() -> seen[0] = DownloadExecutor.currentJob());
+        assertTrue(executor.awaitIdle(System.currentTimeMillis() + 10000));
+        assertSame(job, seen[0]);
+        assertNull(DownloadExecutor.currentJob());
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,66 @@
+package de.theholyexception.mediamanager.models.aniworld;
+
+import de.theholyexception.mediamanager.GatedJobs;
+import org.junit.jupiter.api.Test;
+
+import static de.theholyexception.mediamanager.GatedJobs.awaitCondition;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AniworldHelperTest {
+
+    private static final int JOBS = 40;
+    private static final int GROUP = 1849302;
+    /** Time the test waits to make sure no further task is started */
+    private static final long SETTLE_MILLIS = 200;
+
+    /**
+     * Queues more resolves than there are resolver threads, shrinks the pool while it is busy and grows it again,
+     * every task has to complete and no more tasks may run than the thread count in effect.
+     */
+    @Test
+    void resizeUrlResolverUnderLoad() throws InterruptedException {
+        AniworldHelper.setUrlResolverThreads(4);
+        GatedJobs jobs = new GatedJobs();
+        for (int i = 0; i < JOBS; i++)
+            AniworldHelper.urlResolver.putTask(jobs.newJob(), GROUP);
+
+        try {
+            awaitCondition(() -> jobs.getRunning() == 4, "4 running tasks");
+            Thread.sleep(SETTLE_MILLIS);
+            assertEquals(4, jobs.getStarted());
+
+            // Surplus threads end after their current task, the queued tasks wait for the remaining ones
+            AniworldHelper.setUrlResolverThreads(2);
+            jobs.finish(2);
+            awaitCondition(() -> jobs.getCompleted() == 2, "2 completed tasks");
+            Thread.sleep(SETTLE_MILLIS);
+            assertEquals(4, jobs.getStarted(), "no task may start while the pool is above its new size");
+            assertEquals(2, jobs.getRunning());
+
+            jobs.resetMaxRunning();
+            jobs.finish(10);
+            awaitCondition(() -> jobs.getCompleted() == 12, "12 completed tasks");
+            awaitCondition(() -> jobs.getRunning() == 2, "2 running tasks");
+            assertEquals(2, jobs.getMaxRunning());
+
+            // Growing starts new threads for the queued tasks right away
+            AniworldHelper.setUrlResolverThreads(6);
+            awaitCondition(() -> jobs.getRunning() == 6, "6 running tasks");
+            jobs.finish(10);
+            awaitCondition(() -> jobs.getCompleted() == 22, "22 completed tasks");
+            awaitCondition(() -> jobs.getRunning() == 6, "6 running tasks");
+            assertEquals(6, jobs.getMaxRunning());
+        } finally {
+            jobs.finish(JOBS);
+            AniworldHelper.urlResolver.awaitGroup(GROUP);
+            AniworldHelper.setUrlResolverThreads(1);
+        }
+        assertEquals(JOBS, jobs.getStarted());
+        assertEquals(JOBS, jobs.getCompleted());
+    }
+
+    @Test
+    void urlResolverNeedsAtLeastOneThread() {
+        assertThrows(IllegalArgumentException.class, () -> AniworldHelper.setUrlResolverThreads(0));
+    }
+}
@@ -505,7 +505,7 @@ class DownloadsWidget extends BaseWidget {
         const statusText = statusColumn.querySelector('.status-text');
         
         // Update status text
-        statusText.textContent = item.state;
+        statusText.textContent = DownloadsWidget.getStatusText(item);
         
         // Update status indicator symbols
         const existingSymbols = statusIndicator.querySelectorAll('.error-symbol, .warning-symbol');
@@ -546,8 +546,50 @@ class DownloadsWidget extends BaseWidget {
         });
     }
 
+    static getStatusText(item) {
+        if (item.state === 'Committed' && item.queuePosition > 0)
+            return 'Queued #' + item.queuePosition;
+        if (item.state === 'Downloading' && item.progress !== undefined) {
+            let text = 'Downloading - ' + Math.round(item.progress * 10000) / 100 + '%';
+            if (item.stalled)
+                text += ' (stalled)';
+            if (item.eta > 0 && item.eta < 86400)
+                text += '\n(ETA: ' + DownloadsWidget.formatETA(item.eta) + ')';
+            return text;
+        }
+        return item.state;
+    }
+
+    /**
+     * Formats the estimated time remaining into a human-readable string.
+     * @param {number} etaSeconds The estimated time remaining in seconds
+     * @returns {string} Formatted ETA string (e.g., "2m 30s", "1h 15m", "45s")
+     */
+    static formatETA(etaSeconds) {
+        if (etaSeconds < 60)
+            return etaSeconds + 's';
+        if (etaSeconds < 3600) {
+            const seconds = etaSeconds % 60;
+            return Math.floor(etaSeconds / 60) + 'm' + (seconds > 0 ? ' ' + seconds + 's' : '');
+        }
+        const minutes = Math.floor((etaSeconds % 3600) / 60);
+        return Math.floor(etaSeconds / 3600) + 'h' + (minutes > 0 ? ' ' + minutes + 'm' : '');
+    }
+
     static setStatusAndTooltip(row, item) {
-        let tooltip = "Status:\n" + item.state + "\n";
+        let tooltip = "Status:\n" + DownloadsWidget.getStatusText(item) + "\n";
+        if (item.priority)
+            tooltip += "Priority: " + item.priority + "\n";
+        if (item.queuePosition > 0)
+            tooltip += "Queue position: " + item.queuePosition + "\n";
+        if (item.state === 'Downloading' && item.bytesDone > 0) {
+            tooltip += "Downloaded: " + DataUtils.formatFileSize(item.bytesDone);
+            if (item.bytesTotal > 0)
+                tooltip += " / ~" + DataUtils.formatFileSize(item.bytesTotal);
+            tooltip += "\n";
+            if (item.speed > 0)
+                tooltip += "Speed: " + DataUtils.formatFileSize(item.speed) + "/s\n";
+        }
         tooltip += "Options:\n";
         for (let key in item.options) {
             tooltip += "\t" + key + ": " + item.options[key] + "\n"
@@ -571,7 +613,7 @@ class DownloadsWidget extends BaseWidget {
             });
         //===============================================================================
         //==============================Column - State===============================
-        let statusText = item.state.split('\n')[0];
+        let statusText = DownloadsWidget.getStatusText(item).split('\n')[0];
         let statusIndicator = $('<div>').addClass('status-indicator');
         
         // Add warning/error symbols
@@ -642,7 +684,7 @@ class DownloadsWidget extends BaseWidget {
             return 'committed'
         }
 
-        if (statusMessage.includes("Downloading")) {
+        if (statusMessage.includes("Downloading") || statusMessage.includes("Post-processing") || statusMessage.includes("Finalizing")) {
             return 'downlading'
         }
 
@@ -31,6 +31,16 @@ class SettingsWidget extends BaseWidget {
                 description: 'Maximum number of simultaneous downloads',
                 icon: 'fas fa-stream'
             },
+            {
+                key: 'URL_RESOLVER_THREADS',
+                label: 'URL Resolver Threads',
+                type: 'number',
+                min: 1,
+                max: 32,
+                defaultValue: 10,
+                description: 'Number of threads resolving Aniworld episode and video URLs',
+                icon: 'fas fa-link'
+            },
             {
                 key: 'RETRY_DELAY_FORMULA',
                 label: 'Retry Delay Formula',
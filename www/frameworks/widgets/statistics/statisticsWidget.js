@@ -565,6 +565,9 @@ class StatisticsWidget extends BaseWidget {
             
             for (let dataName in groupData) {
                 let dataValue = groupData[dataName];
+                if (dataValue && typeof dataValue === 'object') {
+                    dataValue = Object.entries(dataValue).map(([key, value]) => key + ': ' + value).join(', ');
+                }
                 let row = $('<tr>');
                 row.append(
                     $('<td>').text(dataName),